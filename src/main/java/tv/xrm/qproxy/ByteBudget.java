@@ -0,0 +1,67 @@
+package tv.xrm.qproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upper limit on the number of bytes held, e.g. by the requests waiting in one queue or in all of them.
+ */
+public final class ByteBudget {
+    private final long limit;
+
+    private final AtomicLong used = new AtomicLong();
+
+    public ByteBudget(final long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return false, reserving nothing, if that many more bytes would exceed the limit
+     */
+    public boolean tryReserve(final long bytes) {
+        long u;
+        do {
+            u = used.get();
+            if (u + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(u, u + bytes));
+        return true;
+    }
+
+    /**
+     * Reserve bytes even beyond the limit, for data that has to be kept anyway.
+     */
+    public void forceReserve(final long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public void release(final long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Whether that many more bytes would currently fit, without reserving them.
+     */
+    public boolean hasRoomFor(final long bytes) {
+        return used.get() + bytes <= limit;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBudget{" +
+                "used=" + used.get() +
+                ", limit=" + limit +
+                '}';
+    }
+}
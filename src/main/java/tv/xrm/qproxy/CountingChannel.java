@@ -0,0 +1,40 @@
+package tv.xrm.qproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Counts the bytes read through it.
+ */
+final class CountingChannel implements ReadableByteChannel {
+    private final ReadableByteChannel delegate;
+    private long count;
+
+    CountingChannel(final ReadableByteChannel delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final int n = delegate.read(dst);
+        if (n > 0) {
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,150 @@
+package tv.xrm.qproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel that runs delayed tasks for any number of queues on a single thread. Scheduling is O(1); the
+ * price is that tasks run up to one tick late. Tasks run on the timer thread, so they must be short.
+ */
+public final class HashedWheelTimer {
+    private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+
+    private volatile long tickLagNanos;
+    private volatile boolean stopped;
+
+    private static final class Timeout {
+        final Runnable task;
+        final long deadlineNanos;
+        long remainingRounds;
+
+        Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * @param name          name of the timer thread
+     * @param tickMillis    resolution of the timer
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(final String name, final long tickMillis, final int ticksPerWheel) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tickMillis and ticksPerWheel must be positive");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Run the task once, no earlier than delayMillis from now.
+     */
+    public void schedule(final Runnable task, final long delayMillis) {
+        if (stopped) {
+            throw new IllegalStateException("timer has been stopped");
+        }
+        final long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        pending.incrementAndGet();
+        incoming.add(new Timeout(task, deadline));
+    }
+
+    /**
+     * @return number of tasks scheduled but not yet run
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return how late the most recent tick was processed, in milliseconds
+     */
+    public long getTickLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickLagNanos);
+    }
+
+    /**
+     * Stop the timer thread. Tasks that have not run yet are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        try {
+            while (!stopped) {
+                final long tickDeadline = tickNanos * (tick + 1);
+                long sleepNanos;
+                while ((sleepNanos = tickDeadline - (System.nanoTime() - startNanos)) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                tickLagNanos = -sleepNanos;
+
+                transferIncoming(tick);
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        } catch (InterruptedException ignored) {
+            // stopped
+        } finally {
+            LOG.info("timer {} stopped", worker.getName());
+        }
+    }
+
+    private void transferIncoming(final long tick) {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            final long expiryTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(final ArrayDeque<Timeout> bucket) {
+        final Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            final Timeout timeout = it.next();
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                continue;
+            }
+            it.remove();
+            pending.decrementAndGet();
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("timer task failed", e);
+            }
+        }
+    }
+}
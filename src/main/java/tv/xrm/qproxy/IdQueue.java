@@ -0,0 +1,52 @@
+package tv.xrm.qproxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded FIFO of request IDs and their retry counts, as held by a {@link RequestQueue}.
+ */
+interface IdQueue {
+
+    final class Entry {
+        final String id;
+        final int retries;
+
+        Entry(String id, int retries) {
+            this.id = id;
+            this.retries = retries;
+        }
+
+        @Override
+        public String toString() {
+            return id + " (" + retries + " retries)";
+        }
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(String id, int retries);
+
+    /**
+     * Like {@link #offer(String, int)}, but waits up to the given time for space.
+     */
+    boolean offer(String id, int retries, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Wait for an entry and remove it.
+     */
+    Entry take() throws InterruptedException;
+
+    /**
+     * @return the oldest entry, removed, or null if the queue is empty
+     */
+    Entry poll();
+
+    int size();
+
+    int remainingCapacity();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+}
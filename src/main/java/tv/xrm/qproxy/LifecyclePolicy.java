@@ -8,6 +8,11 @@ public interface LifecyclePolicy {
 
     int DO_NOT_RETRY = -1;
 
+    /**
+     * Status code passed to {@link #shouldRetryIn(Request, int, long)} when there was no response at all.
+     */
+    int NO_RESPONSE = 0;
+
     /**
      * Based on the HTTP response status code, can we consider this request successfully delivered?
      *
@@ -33,6 +38,18 @@ public interface LifecyclePolicy {
      */
     long shouldRetryIn(Request req);
 
+    /**
+     * Like {@link #shouldRetryIn(Request)}, but knowing how the target answered.
+     *
+     * @param req
+     * @param httpStatusCode   status of the response, or {@link #NO_RESPONSE}
+     * @param retryAfterMillis delay asked for with a Retry-After header; negative if there was none
+     * @return Zero or positive milliseconds delay before retry. Negative if it should not be retried.
+     */
+    default long shouldRetryIn(Request req, int httpStatusCode, long retryAfterMillis) {
+        return shouldRetryIn(req);
+    }
+
     /**
      * Should this request be forgotten, i.e. never retried again?
      *
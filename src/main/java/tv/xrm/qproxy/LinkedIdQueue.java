@@ -0,0 +1,51 @@
+package tv.xrm.qproxy;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IdQueue} on a {@link LinkedBlockingQueue}: allocates a node per entry and locks on offer and take.
+ */
+final class LinkedIdQueue implements IdQueue {
+    private final LinkedBlockingQueue<Entry> queue;
+
+    LinkedIdQueue(final int capacity) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public boolean offer(final String id, final int retries) {
+        return queue.offer(new Entry(id, retries));
+    }
+
+    @Override
+    public boolean offer(final String id, final int retries, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return queue.offer(new Entry(id, retries), timeout, unit);
+    }
+
+    @Override
+    public Entry take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public Entry poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
@@ -3,51 +3,236 @@ package tv.xrm.qproxy;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
- * Initializes and keeps queues and allows to find a queue for a given Request.
+ * Initializes and keeps queues and allows to find a queue for a given Request. Queues that have been idle for a while
+ * can be evicted with {@link #evictIdle(long)}; they are re-created on next use.
  */
 public class QueueRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueRegistry.class);
 
-    private final ConcurrentMap<String, RequestQueue> map = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Entry> map = new ConcurrentHashMap<>();
+    /**
+     * Evicted queues whose dispatchers are still stopping; no replacement is created until they are done, so it
+     * cannot register metrics under the same names before the old ones are removed.
+     */
+    private final ConcurrentMap<String, CountDownLatch> stopping = new ConcurrentHashMap<>();
     private final RequestQueueAndDispatcherFactory factory;
-    private final int levels;
+    private final RoutingTable routing;
 
     public QueueRegistry(RequestQueueAndDispatcherFactory factory, int levels) {
+        this(factory, RoutingTable.of(new RoutingTable.Route("default", false, levels, 0, 0, 0)));
+    }
+
+    public QueueRegistry(RequestQueueAndDispatcherFactory factory, RoutingTable routing) {
         this.factory = factory;
-        this.levels = levels;
+        this.routing = routing;
     }
 
     public interface RequestQueueAndDispatcherFactory {
-        RequestQueue getQueue(String id);
+        /**
+         * @param route the route the queue's requests came by, with any settings specific to it
+         */
+        RequestQueue getQueue(String id, RoutingTable.Route route);
+
+        RequestDispatcher getDispatcher(RequestQueue queue, RoutingTable.Route route);
+    }
+
+    private static final class Entry {
+        final RequestQueue queue;
+        final RequestDispatcher dispatcher;
+
+        Entry(RequestQueue queue, RequestDispatcher dispatcher) {
+            this.queue = queue;
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * Enqueue a request on the queue for its URI, creating the queue if necessary.
+     */
+    public Request enqueue(final Request req) {
+        while (true) {
+            try {
+                return getQueue(req.getUri()).enqueue(req);
+            } catch (RequestQueue.QueueRetiredException e) {
+                // evicted between lookup and enqueue; the next lookup will see its replacement
+                LOG.debug("queue retired during enqueue, retrying", e);
+            }
+        }
+    }
+
+    /**
+     * Enqueue several requests, each on the queue for its URI. The requests for one queue are stored together, and
+     * succeed or fail together.
+     *
+     * @return the requests with their IDs, in the same order; requests that could not be enqueued have no ID
+     * @see RequestQueue#enqueueAll(List)
+     */
+    public List<Request> enqueueAll(final List<Request> reqs) {
+        final Map<String, List<Integer>> byQueue = new LinkedHashMap<>();
+        for (int i = 0; i < reqs.size(); i++) {
+            byQueue.computeIfAbsent(queueKey(reqs.get(i).getUri(), routing.route(reqs.get(i).getUri())),
+                    k -> new ArrayList<>()).add(i);
+        }
+
+        final Request[] result = new Request[reqs.size()];
+        for (List<Integer> indexes : byQueue.values()) {
+            final List<Request> group = new ArrayList<>(indexes.size());
+            indexes.forEach(i -> group.add(reqs.get(i)));
+
+            List<Request> enqueued;
+            try {
+                enqueued = enqueueAllOnOneQueue(group);
+            } catch (RequestQueue.RequestQueueException e) {
+                LOG.warn("failed to enqueue {} requests for {}", group.size(), group.get(0).getUri(), e);
+                enqueued = group.stream().map(r -> Request.withId(r, null)).collect(Collectors.toList());
+            }
+            for (int j = 0; j < indexes.size(); j++) {
+                result[indexes.get(j)] = enqueued.get(j);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    private List<Request> enqueueAllOnOneQueue(final List<Request> group) {
+        while (true) {
+            try {
+                return getQueue(group.get(0).getUri()).enqueueAll(group);
+            } catch (RequestQueue.QueueRetiredException e) {
+                LOG.debug("queue retired during enqueue, retrying", e);
+            }
+        }
+    }
 
-        RequestDispatcher getDispatcher(RequestQueue queue);
+    /**
+     * Hand a request that is already in storage to the queue for its URI, creating the queue if necessary.
+     *
+     * @see RequestQueue#adopt(Request, long)
+     */
+    public boolean adopt(final Request req, final long timeoutMillis) throws InterruptedException {
+        while (true) {
+            try {
+                return getQueue(req.getUri()).adopt(req, timeoutMillis);
+            } catch (RequestQueue.QueueRetiredException e) {
+                LOG.debug("queue retired during adopt, retrying", e);
+            }
+        }
     }
 
+    /**
+     * Note that the queue returned may be retired at any time. Prefer {@link #enqueue(Request)}.
+     */
     public RequestQueue getQueue(final URI uri) {
-        final String cutUri = aggregateUri(uri);
-
-        RequestQueue q = map.get(cutUri);
-        if (q == null) {
-            q = factory.getQueue(cutUri);
-            RequestQueue prevQ = map.putIfAbsent(cutUri, q);
-            if (prevQ != null) {
-                q = prevQ;
-            } else {
-                // new one was used
-                RequestDispatcher dispatcher = factory.getDispatcher(q);
+        final RoutingTable.Route route = routing.route(uri);
+        final String key = queueKey(uri, route);
+
+        Entry entry = map.get(key);
+        while (entry == null || entry.queue.isRetired()) {
+            final CountDownLatch stopped = stopping.get(key);
+            if (stopped != null) {
+                Uninterruptibles.awaitUninterruptibly(stopped);
+            }
+            entry = map.compute(key, (id, existing) -> {
+                if (existing != null && !existing.queue.isRetired()) {
+                    return existing;
+                }
+                if (stopping.containsKey(id)) {
+                    // evicted again since we waited
+                    return existing;
+                }
+                final RequestQueue q = factory.getQueue(id, route);
+                final RequestDispatcher dispatcher = factory.getDispatcher(q, route);
                 dispatcher.start();
+                return new Entry(q, dispatcher);
+            });
+        }
+        return entry.queue;
+    }
+
+    /**
+     * Retire and remove all queues that have had no outstanding requests for at least idleMillis, stopping their
+     * dispatchers.
+     *
+     * @return number of queues evicted
+     */
+    public int evictIdle(final long idleMillis) {
+        final long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        int evicted = 0;
+        for (String id : map.keySet()) {
+            if (evict(id, idleNanos)) {
+                evicted++;
             }
         }
-        return q;
+        return evicted;
+    }
+
+    private boolean evict(final String id, final long idleNanos) {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Entry[] evicted = new Entry[1];
+        // only retire and remove under the map's lock for this id; the dispatcher is stopped outside of it
+        map.computeIfPresent(id, (key, entry) -> {
+            if (!entry.queue.retireIfIdle(idleNanos)) {
+                return entry;
+            }
+            stopping.put(key, stopped);
+            evicted[0] = entry;
+            return null;
+        });
+        if (evicted[0] == null) {
+            return false;
+        }
+
+        try {
+            evicted[0].dispatcher.stop();
+        } catch (RuntimeException e) {
+            LOG.warn("failed to stop dispatcher of queue {}", id, e);
+        } finally {
+            stopping.remove(id, stopped);
+            stopped.countDown();
+        }
+        LOG.info("evicted idle queue {}", id);
+        return true;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Requests on the default route are keyed by their aggregated URI alone; other routes' keys start with the route
+     * name, so that their queues stay apart from default ones even where the aggregated URIs are the same.
+     */
+    private String queueKey(final URI uri, final RoutingTable.Route route) {
+        if (route.isSingleQueue()) {
+            return route.getName();
+        }
+        final String cutUri = aggregateUri(uri, route.getPathAggregationLevels());
+        return route == routing.getDefaultRoute() ? cutUri : route.getName() + "@" + cutUri;
     }
 
     String aggregateUri(final URI uri) {
+        return aggregateUri(uri, routing.getDefaultRoute().getPathAggregationLevels());
+    }
+
+    private static String aggregateUri(final URI uri, final int levels) {
         String cutUri;
         try {
             String path = uri.getPath();
@@ -0,0 +1,36 @@
+package tv.xrm.qproxy;
+
+/**
+ * How a {@link RequestQueue} holds the IDs of its waiting requests.
+ */
+public enum QueueType {
+    /**
+     * A linked blocking queue, allocating a node per request.
+     */
+    LINKED,
+
+    /**
+     * A preallocated ring buffer that producers and consumers access without locks.
+     */
+    RING;
+
+    public static QueueType fromConfig(final String value) {
+        switch (value) {
+            case "linked":
+                return LINKED;
+            case "ring":
+                return RING;
+            default:
+                throw new IllegalStateException("unknown queueType " + value);
+        }
+    }
+
+    IdQueue create(final int capacity) {
+        switch (this) {
+            case RING:
+                return new RingIdQueue(capacity);
+            default:
+                return new LinkedIdQueue(capacity);
+        }
+    }
+}
@@ -1,5 +1,10 @@
-package tv.xrm.qproxy;
-
-public interface RequestDispatcher {
-    void start();
-}
+package tv.xrm.qproxy;
+
+public interface RequestDispatcher {
+    void start();
+
+    /**
+     * Stop delivering, release threads and connections and remove any metrics. Used when a queue has been retired.
+     */
+    void stop();
+}
@@ -6,75 +6,478 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
 public class RequestQueue {
     private static final Logger LOG = LoggerFactory.getLogger(RequestQueue.class);
 
-    private final Timer delayTimer = new Timer("RequestQueue_delayTimer", true);
-    private final LinkedBlockingQueue<IdRetries> requestQueue;
+    private final HashedWheelTimer delayTimer;
+    private final IdQueue requestQueue;
 
     private final String queueId;
     private final RequestStorage storage;
+    private final MetricRegistry metricRegistry;
 
-    private static final class IdRetries {
-        final String id;
-        final int retries;
+    private volatile Runnable availabilityListener;
 
-        IdRetries(String id, int retries) {
-            this.id = id;
-            this.retries = retries;
-        }
+    /**
+     * Number of requests stored through this queue and not yet cleaned up (waiting, in delivery or waiting for a
+     * retry), or RETIRED once the queue has been shut down.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private static final int RETIRED = -1;
+
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    private final ByteBudget queueBudget;
+    private final ByteBudget globalBudget;
+
+    /**
+     * Stored size of each outstanding request, if there is any byte budget to account to.
+     */
+    private final ConcurrentMap<String, Long> sizes;
+
+    public RequestQueue(final String queueId, final RequestStorage storage, final MetricRegistry metricRegistry,
+            final int capacity, final HashedWheelTimer delayTimer) {
+        this(queueId, storage, metricRegistry, capacity, delayTimer, QueueType.LINKED, 0, null);
     }
 
+    /**
+     * @param maxQueuedBytes limit on the stored size of all outstanding requests of this queue; 0 for none
+     * @param globalBudget   budget shared with other queues, or null
+     */
     public RequestQueue(final String queueId, final RequestStorage storage, final MetricRegistry metricRegistry,
-            final int capacity) {
-        LOG.debug("creating request queue {} with storage {} and capacity {}", queueId, storage, capacity);
-        this.requestQueue = new LinkedBlockingQueue<>(capacity);
+            final int capacity, final HashedWheelTimer delayTimer, final QueueType type, final long maxQueuedBytes,
+            final ByteBudget globalBudget) {
+        LOG.debug("creating {} request queue {} with storage {} and capacity {}", type, queueId, storage, capacity);
+        this.requestQueue = type.create(capacity);
         this.queueId = queueId;
         this.storage = storage;
+        this.delayTimer = delayTimer;
+        this.metricRegistry = metricRegistry;
+        this.queueBudget = maxQueuedBytes > 0 ? new ByteBudget(maxQueuedBytes) : null;
+        this.globalBudget = globalBudget;
+        this.sizes = queueBudget != null || globalBudget != null ? new ConcurrentHashMap<>() : null;
 
         metricRegistry.register(name(RequestQueue.class, queueId, "queue-length"), (Gauge<Integer>) requestQueue::size);
+        if (queueBudget != null) {
+            metricRegistry.register(name(RequestQueue.class, queueId, "queued-bytes"),
+                    (Gauge<Long>) queueBudget::getUsed);
+        }
+    }
+
+    /**
+     * Fail early if a request of about the given size would not be accepted now, because the queue is full or a byte
+     * budget is exhausted. Passing this check does not guarantee that {@link #enqueue(Request)} will succeed.
+     *
+     * @param expectedBytes body size, if known; otherwise -1
+     * @throws QueueFullException if it would not fit
+     */
+    public void checkAdmission(final long expectedBytes) {
+        if (requestQueue.remainingCapacity() == 0) {
+            throw new QueueFullException("queue " + queueId + " is full", false);
+        }
+        final long bytes = Math.max(0, expectedBytes);
+        if (queueBudget != null && !queueBudget.hasRoomFor(bytes)) {
+            throw new BudgetExceededException("queue " + queueId + " has no byte budget left", false);
+        }
+        if (globalBudget != null && !globalBudget.hasRoomFor(bytes)) {
+            throw new BudgetExceededException("global byte budget exhausted", true);
+        }
     }
 
+    /**
+     * @throws QueueRetiredException if the queue has been retired; the caller should get a fresh queue and try again
+     */
     public Request enqueue(final Request req) {
+        final Request stored = store(req);
+        submit(stored);
+        return stored;
+    }
+
+    /**
+     * Store a request without handing it to the dispatchers yet, e.g. while it is being delivered some other way. It
+     * counts as outstanding until it is either {@link #submit(Request) submitted} or {@link #cleanup(String) cleaned
+     * up}.
+     *
+     * @return the request with its ID
+     * @throws QueueRetiredException if the queue has been retired; the caller should get a fresh queue and try again
+     */
+    public Request store(final Request req) {
+        acquire();
+        boolean stored = false;
         try {
             if (requestQueue.remainingCapacity() == 0) {
-                throw new RequestQueueException("no capacity; unable to enqueue " + req);
+                throw new QueueFullException("no capacity; unable to enqueue " + req, false);
             }
-            String id = storage.store(req);
-            if (!requestQueue.offer(new IdRetries(id, req.getRetryCount()))) {
-                storage.delete(id);
-                throw new RequestQueueException("unable to enqueue " + req);
+            checkAdmission(0);
+            final CountingChannel body = sizes != null ? new CountingChannel(req.getBodyStream()) : null;
+            String id = storage.store(body != null ? withBody(req, body) : req);
+            if (body != null) {
+                reserve(Collections.singletonList(id), Collections.singletonList(body));
             }
+            stored = true;
             return Request.withId(req, id);
         } catch (IOException e) {
             throw new RequestQueueException("unable to enqueue request " + req, e);
+        } finally {
+            if (!stored) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Reserve room for one request with a body of the given size, before any of the body has been read. Use this
+     * instead of {@link #store(Request)} when reading the body has side effects, such as passing it on to the target,
+     * so that the request cannot be rejected once that has started.
+     *
+     * @param expectedBytes body size, if known; otherwise -1
+     * @throws QueueFullException if the queue is full or the size does not fit the byte budgets
+     * @throws QueueRetiredException if the queue has been retired; the caller should get a fresh queue and try again
+     */
+    public Admission admit(final long expectedBytes) {
+        acquire();
+        boolean admitted = false;
+        try {
+            if (requestQueue.remainingCapacity() == 0) {
+                throw new QueueFullException("queue " + queueId + " is full", false);
+            }
+            final long bytes = sizes != null ? Math.max(0, expectedBytes) : 0;
+            reserveBytes(bytes);
+            admitted = true;
+            return new Admission(bytes);
+        } finally {
+            if (!admitted) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Room for one request reserved by {@link #admit(long)}; to be used for {@link #store(Request)} or cancelled.
+     */
+    public final class Admission {
+        private final long reservedBytes;
+
+        private boolean used;
+
+        private Admission(final long reservedBytes) {
+            this.reservedBytes = reservedBytes;
+        }
+
+        public RequestQueue getQueue() {
+            return RequestQueue.this;
+        }
+
+        /**
+         * Like {@link RequestQueue#store(Request)}, but never rejects the request for its size: a body larger than
+         * admitted is accounted in full, even beyond the byte budgets, since it has been read already.
+         */
+        public Request store(final Request req) {
+            if (used) {
+                throw new IllegalStateException("admission already used");
+            }
+            used = true;
+            boolean stored = false;
+            try {
+                final CountingChannel body = sizes != null ? new CountingChannel(req.getBodyStream()) : null;
+                final String id = storage.store(body != null ? withBody(req, body) : req);
+                if (body != null) {
+                    final long actual = body.getCount();
+                    if (actual < reservedBytes) {
+                        releaseBytes(reservedBytes - actual);
+                    } else if (actual > reservedBytes) {
+                        forceReserveBytes(actual - reservedBytes);
+                    }
+                    sizes.put(id, actual);
+                }
+                stored = true;
+                return Request.withId(req, id);
+            } catch (IOException e) {
+                throw new RequestQueueException("unable to enqueue request " + req, e);
+            } finally {
+                if (!stored) {
+                    releaseBytes(reservedBytes);
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Give back the reserved room, unless it has been used.
+         */
+        public void cancel() {
+            if (!used) {
+                used = true;
+                releaseBytes(reservedBytes);
+                release();
+            }
+        }
+    }
+
+    /**
+     * Hand a request returned by {@link #store(Request)} to the dispatchers. If that fails, it is deleted.
+     *
+     * @throws QueueFullException if the queue has filled up since the request was stored
+     */
+    public void submit(final Request stored) {
+        if (!requestQueue.offer(stored.getId(), stored.getRetryCount())) {
+            storage.delete(stored.getId());
+            unreserve(stored.getId());
+            release();
+            throw new QueueFullException("no capacity; unable to enqueue " + stored, false);
+        }
+        notifyAvailable();
+    }
+
+    /**
+     * Enqueue several requests with a single storage write. Either all of them are stored, or none; in the rare case
+     * that capacity runs out after storing, the requests that did not fit are deleted again and returned without ID.
+     *
+     * @return the requests with their IDs, in the same order
+     * @throws QueueRetiredException if the queue has been retired; the caller should get a fresh queue and try again
+     */
+    public List<Request> enqueueAll(final List<Request> reqs) {
+        int acquired = 0;
+        try {
+            for (int i = 0; i < reqs.size(); i++) {
+                acquire();
+                acquired++;
+            }
+            if (requestQueue.remainingCapacity() < reqs.size()) {
+                throw new QueueFullException("no capacity; unable to enqueue " + reqs.size() + " requests", false);
+            }
+            checkAdmission(0);
+            final List<String> ids;
+            if (sizes != null) {
+                final List<CountingChannel> bodies = new ArrayList<>(reqs.size());
+                final List<Request> counted = new ArrayList<>(reqs.size());
+                for (Request req : reqs) {
+                    final CountingChannel body = new CountingChannel(req.getBodyStream());
+                    bodies.add(body);
+                    counted.add(withBody(req, body));
+                }
+                ids = storage.storeAll(counted);
+                reserve(ids, bodies);
+            } else {
+                ids = storage.storeAll(reqs);
+            }
+
+            final List<Request> result = new ArrayList<>(reqs.size());
+            for (int i = 0; i < reqs.size(); i++) {
+                final Request req = reqs.get(i);
+                if (requestQueue.offer(ids.get(i), req.getRetryCount())) {
+                    acquired--;
+                    result.add(Request.withId(req, ids.get(i)));
+                } else {
+                    storage.delete(ids.get(i));
+                    unreserve(ids.get(i));
+                    result.add(Request.withId(req, null));
+                }
+            }
+            notifyAvailable();
+            return result;
+        } catch (IOException e) {
+            throw new RequestQueueException("unable to enqueue " + reqs.size() + " requests", e);
+        } finally {
+            for (int i = 0; i < acquired; i++) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Enqueue a request that is already in storage, typically one left over from a previous run, waiting up to
+     * timeoutMillis for capacity.
+     *
+     * @return false if there was no capacity
+     * @throws QueueRetiredException if the queue has been retired; the caller should get a fresh queue and try again
+     */
+    public boolean adopt(final Request req, final long timeoutMillis) throws InterruptedException {
+        acquire();
+        boolean enqueued = false;
+        try {
+            enqueued = requestQueue.offer(req.getId(), req.getRetryCount(), timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+            if (enqueued) {
+                notifyAvailable();
+            }
+            return enqueued;
+        } finally {
+            if (!enqueued) {
+                release();
+            }
+        }
+    }
+
+    private void acquire() {
+        int n;
+        do {
+            n = outstanding.get();
+            if (n == RETIRED) {
+                throw new QueueRetiredException("queue " + queueId + " has been retired");
+            }
+        } while (!outstanding.compareAndSet(n, n + 1));
+        lastActivityNanos = System.nanoTime();
+    }
+
+    private void release() {
+        outstanding.decrementAndGet();
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Account stored requests to the byte budgets, or delete them if they do not fit.
+     */
+    private void reserve(final List<String> ids, final List<CountingChannel> bodies) {
+        long total = 0;
+        for (CountingChannel body : bodies) {
+            total += body.getCount();
+        }
+
+        try {
+            reserveBytes(total);
+        } catch (BudgetExceededException e) {
+            ids.forEach(storage::delete);
+            throw e;
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            sizes.put(ids.get(i), bodies.get(i).getCount());
+        }
+    }
+
+    private void reserveBytes(final long bytes) {
+        if (queueBudget != null && !queueBudget.tryReserve(bytes)) {
+            throw new BudgetExceededException("queue " + queueId + " has no byte budget left", false);
+        }
+        if (globalBudget != null && !globalBudget.tryReserve(bytes)) {
+            if (queueBudget != null) {
+                queueBudget.release(bytes);
+            }
+            throw new BudgetExceededException("global byte budget exhausted", true);
+        }
+    }
+
+    private void forceReserveBytes(final long bytes) {
+        if (queueBudget != null) {
+            queueBudget.forceReserve(bytes);
+        }
+        if (globalBudget != null) {
+            globalBudget.forceReserve(bytes);
+        }
+    }
+
+    private void releaseBytes(final long bytes) {
+        if (queueBudget != null) {
+            queueBudget.release(bytes);
+        }
+        if (globalBudget != null) {
+            globalBudget.release(bytes);
+        }
+    }
+
+    private void unreserve(final String id) {
+        final Long size = sizes != null ? sizes.remove(id) : null;
+        if (size != null) {
+            releaseBytes(size);
+        }
+    }
+
+    private static Request withBody(final Request original, final ReadableByteChannel body) {
+        return new Request(original.getUri(), original.getHeaders(), body, original.getId(),
+                original.getRetryCount(), original.getReceivedTimestamp());
+    }
+
+    /**
+     * Shut the queue down if it has been idle, i.e. has had no outstanding requests, for at least idleNanos. A retired
+     * queue accepts no more requests and its metrics are removed. Its dispatcher has to be stopped by the caller.
+     *
+     * @return true if the queue has been retired by this call
+     */
+    public boolean retireIfIdle(final long idleNanos) {
+        if (System.nanoTime() - lastActivityNanos < idleNanos || !outstanding.compareAndSet(0, RETIRED)) {
+            return false;
         }
+        availabilityListener = null;
+        metricRegistry.remove(name(RequestQueue.class, queueId, "queue-length"));
+        metricRegistry.remove(name(RequestQueue.class, queueId, "queued-bytes"));
+        LOG.debug("retired idle request queue {}", queueId);
+        return true;
+    }
+
+    public boolean isRetired() {
+        return outstanding.get() == RETIRED;
+    }
+
+    /**
+     * Whether any request is waiting in this queue, being delivered or waiting for a retry.
+     */
+    public boolean hasOutstanding() {
+        return outstanding.get() > 0;
     }
 
     public Request take() throws InterruptedException {
-        final IdRetries entry = requestQueue.take();
+        return retrieve(requestQueue.take());
+    }
+
+    /**
+     * Like {@link #take()}, but returns null instead of waiting if the queue is empty.
+     */
+    public Request poll() {
+        final IdQueue.Entry entry = requestQueue.poll();
+        return entry != null ? retrieve(entry) : null;
+    }
+
+    public boolean isEmpty() {
+        return requestQueue.isEmpty();
+    }
+
+    /**
+     * Register a callback that is run whenever an item was added to the queue. Used by dispatchers that do not keep
+     * a thread waiting on {@link #take()}. The callback must be cheap; it runs on the enqueueing thread.
+     */
+    public void setAvailabilityListener(final Runnable listener) {
+        this.availabilityListener = listener;
+    }
+
+    private Request retrieve(final IdQueue.Entry entry) {
         try {
             Request retrieved = storage.retrieve(entry.id);
             return Request.withRetries(retrieved, entry.retries);
         } catch (IOException e) {
+            unreserve(entry.id);
+            release();
             throw new RequestQueueException("failed to retrieve " + entry + " from storage", e);
         }
     }
 
+    private void notifyAvailable() {
+        final Runnable listener = availabilityListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     public void requeue(final Request req, final long delayMillis) {
-        final TimerTask requeueTask = new TimerTask() {
-            @Override
-            public void run() {
-                if (!requestQueue.offer(new IdRetries(req.getId(), req.getRetryCount()))) {
-                    LOG.warn("failed to requeue request " + req);
-                    storage.delete(req.getId());
-                }
+        final Runnable requeueTask = () -> {
+            if (requestQueue.offer(req.getId(), req.getRetryCount())) {
+                notifyAvailable();
+            } else {
+                LOG.warn("failed to requeue request " + req);
+                storage.delete(req.getId());
+                unreserve(req.getId());
+                release();
             }
         };
         if (delayMillis > 0) {
@@ -88,9 +491,11 @@ public class RequestQueue {
 
     public void cleanup(final String id) {
         storage.delete(id);
+        unreserve(id);
+        release();
     }
 
-    public static final class RequestQueueException extends RuntimeException {
+    public static class RequestQueueException extends RuntimeException {
         public RequestQueueException(String message) {
             super(message);
         }
@@ -100,6 +505,37 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * There is no room for more requests, either in this queue or, if global, in the proxy as a whole.
+     */
+    public static class QueueFullException extends RequestQueueException {
+        private final boolean global;
+
+        public QueueFullException(String message, boolean global) {
+            super(message);
+            this.global = global;
+        }
+
+        public boolean isGlobal() {
+            return global;
+        }
+    }
+
+    /**
+     * A byte budget, either the queue's own or the global one, has been used up.
+     */
+    public static final class BudgetExceededException extends QueueFullException {
+        public BudgetExceededException(String message, boolean global) {
+            super(message, global);
+        }
+    }
+
+    public static final class QueueRetiredException extends RequestQueueException {
+        public QueueRetiredException(String message) {
+            super(message);
+        }
+    }
+
     public String getQueueId() {
         return queueId;
     }
@@ -1,7 +1,9 @@
 package tv.xrm.qproxy;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface RequestStorage {
 
@@ -10,15 +12,36 @@ public interface RequestStorage {
      */
     String store(Request request) throws IOException;
 
+    /**
+     * Store the given requests together, returning their IDs in the same order. Either all of them are stored, or
+     * none. Storages that can write a batch more cheaply than one request at a time should override this.
+     */
+    default List<String> storeAll(List<Request> requests) throws IOException {
+        final List<String> ids = new ArrayList<>(requests.size());
+        try {
+            for (Request request : requests) {
+                ids.add(store(request));
+            }
+        } catch (IOException | RuntimeException e) {
+            ids.forEach(this::delete);
+            throw e;
+        }
+        return ids;
+    }
+
     /**
      * Retrieve the request identified by ID.
      */
     Request retrieve(String id) throws IOException;
 
     /**
-     * Retrieve all requests currently in storage. Typically used for cleanup of leftover requests.
+     * Find all requests left over in storage when it was opened, for recovery at startup; requests stored since are
+     * not included, so live traffic stored while recovery runs is not delivered twice. Only ID, URI and received
+     * timestamp are filled in; no headers, and no body channels are opened. Requests are read while the stream is
+     * consumed, so memory use does not grow with the number of stored requests; they come oldest first as far as the
+     * storage keeps them in order, see the implementations. The stream must be closed.
      */
-    List<Request> retrieve();
+    Stream<Request> recover();
 
     /**
      * Delete the request identified by id, if it exists. Do not complain if it's null or invalid.
@@ -0,0 +1,184 @@
+package tv.xrm.qproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded multi-producer multi-consumer {@link IdQueue} on preallocated slots, after Dmitry Vyukov's design: each
+ * slot has a sequence number telling producers and consumers whose turn it is, so that neither takes a lock and no
+ * memory is allocated on offer.
+ * <p>
+ * A consumer finding the queue empty in {@link #take()} yields for a while, then parks until a producer signals it;
+ * producers only touch the lock when a consumer is parked. Producers waiting for space in
+ * {@link #offer(String, int, long, TimeUnit)} poll, as that is only used while recovering leftover requests.
+ */
+final class RingIdQueue implements IdQueue {
+    private static final int SPINS = 64;
+
+    private static final long FULL_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+
+    /**
+     * For each slot: the position a producer may fill it at, or that position + 1 once filled.
+     */
+    private final AtomicLongArray sequences;
+    private final String[] ids;
+    private final int[] retries;
+
+    /**
+     * Next position to take from and next to fill; kept apart from each other to avoid false sharing.
+     */
+    private final PaddedPosition head = new PaddedPosition();
+    private final PaddedPosition tail = new PaddedPosition();
+
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    RingIdQueue(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        this.ids = new String[capacity];
+        this.retries = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(final String id, final int retryCount) {
+        long pos = tail.get();
+        while (true) {
+            final int index = index(pos);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ids[index] = id;
+                    retries[index] = retryCount;
+                    sequences.set(index, pos + 1);
+                    signalConsumer();
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the slot still holds the entry from one lap ago
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(final String id, final int retryCount, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(id, retryCount)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, FULL_PARK_NANOS));
+        }
+        return true;
+    }
+
+    @Override
+    public Entry poll() {
+        long pos = head.get();
+        while (true) {
+            final int index = index(pos);
+            final long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final Entry entry = new Entry(ids[index], retries[index]);
+                    ids[index] = null;
+                    sequences.set(index, pos + capacity);
+                    return entry;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    @Override
+    public Entry take() throws InterruptedException {
+        Entry entry = poll();
+        for (int i = 0; entry == null && i < SPINS; i++) {
+            Thread.yield();
+            entry = poll();
+        }
+        if (entry != null) {
+            return entry;
+        }
+
+        lock.lockInterruptibly();
+        try {
+            // registered before checking again, so a producer either sees us waiting or we see its entry
+            waitingConsumers.incrementAndGet();
+            try {
+                while ((entry = poll()) == null) {
+                    notEmpty.await();
+                }
+                return entry;
+            } finally {
+                waitingConsumers.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Includes entries whose producers have claimed a slot but not yet filled it.
+     */
+    @Override
+    public int size() {
+        final long h = head.get();
+        final long t = tail.get();
+        return (int) Math.max(0, Math.min(capacity, t - h));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    private void signalConsumer() {
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private int index(final long pos) {
+        return (int) (pos % capacity);
+    }
+
+    @SuppressWarnings("unused")
+    private static final class PaddedPosition extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
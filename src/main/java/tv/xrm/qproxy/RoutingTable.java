@@ -0,0 +1,308 @@
+package tv.xrm.qproxy;
+
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which route, and so which queue settings, a target URI belongs to. Prefix rules are kept in a trie of
+ * origin (scheme, host, port) and path elements, and the longest matching prefix wins. URIs not matched by any prefix
+ * are tried against the regex rules, which are combined into a single pattern and tried in the order given. URIs
+ * matching no rule take the default route.
+ * <p>
+ * Combining the regex rules saves a matcher per rule, but java.util.regex backtracks through the alternatives one by
+ * one, so a lookup that gets as far as the regex rules still takes time linear in their number. Named groups of the
+ * rules are renamed apart, so that rules may use the same group names.
+ */
+public final class RoutingTable {
+
+    /**
+     * Where requests go and what their queues look like. Settings of 0 mean the global default.
+     */
+    public static final class Route {
+        private final String name;
+        private final boolean singleQueue;
+        private final int pathAggregationLevels;
+        private final int queueCapacity;
+        private final int posterThreadCount;
+        private final int maxInFlightPerQueue;
+        private final int weight;
+
+        public Route(final String name, final boolean singleQueue, final int pathAggregationLevels,
+                final int queueCapacity, final int posterThreadCount, final int maxInFlightPerQueue) {
+            this(name, singleQueue, pathAggregationLevels, queueCapacity, posterThreadCount, maxInFlightPerQueue, 0);
+        }
+
+        /**
+         * @param singleQueue if true, all requests on this route share one queue named after the route; otherwise
+         *                    there is a queue per target, as determined by pathAggregationLevels
+         * @param weight      share of the shared dispatcher pool each queue of this route gets, relative to others
+         */
+        public Route(final String name, final boolean singleQueue, final int pathAggregationLevels,
+                final int queueCapacity, final int posterThreadCount, final int maxInFlightPerQueue,
+                final int weight) {
+            this.name = Objects.requireNonNull(name);
+            this.singleQueue = singleQueue;
+            this.pathAggregationLevels = pathAggregationLevels;
+            this.queueCapacity = queueCapacity;
+            this.posterThreadCount = posterThreadCount;
+            this.maxInFlightPerQueue = maxInFlightPerQueue;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSingleQueue() {
+            return singleQueue;
+        }
+
+        public int getPathAggregationLevels() {
+            return pathAggregationLevels;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public int getPosterThreadCount() {
+            return posterThreadCount;
+        }
+
+        public int getMaxInFlightPerQueue() {
+            return maxInFlightPerQueue;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return "Route{" +
+                    "name='" + name + '\'' +
+                    ", singleQueue=" + singleQueue +
+                    ", pathAggregationLevels=" + pathAggregationLevels +
+                    '}';
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Route route;
+    }
+
+    private final Route defaultRoute;
+
+    private final Node root = new Node();
+
+    private final List<Route> regexRoutes = new ArrayList<>();
+
+    private final Pattern combinedRegex;
+
+    private RoutingTable(final Builder builder) {
+        this.defaultRoute = builder.defaultRoute;
+
+        for (Map.Entry<URI, Route> prefix : builder.prefixes) {
+            Node node = root.children.computeIfAbsent(origin(prefix.getKey()), k -> new Node());
+            for (String element : pathElements(prefix.getKey())) {
+                node = node.children.computeIfAbsent(element, k -> new Node());
+            }
+            if (node.route != null) {
+                throw new IllegalArgumentException("duplicate prefix " + prefix.getKey());
+            }
+            node.route = prefix.getValue();
+        }
+
+        final StringBuilder combined = new StringBuilder();
+        for (Map.Entry<String, Route> regex : builder.regexes) {
+            if (combined.length() > 0) {
+                combined.append('|');
+            }
+            final int i = regexRoutes.size();
+            combined.append("(?<").append(groupName(i)).append('>')
+                    .append(renameGroups(regex.getKey(), "rule" + i + "x")).append(')');
+            regexRoutes.add(regex.getValue());
+        }
+        this.combinedRegex = regexRoutes.isEmpty() ? null : Pattern.compile(combined.toString());
+    }
+
+    /**
+     * A table with no rules, sending everything to the given route.
+     */
+    public static RoutingTable of(final Route defaultRoute) {
+        return builder(defaultRoute).build();
+    }
+
+    public static Builder builder(final Route defaultRoute) {
+        return new Builder(defaultRoute);
+    }
+
+    public Route route(final URI uri) {
+        Node node = root.children.get(origin(uri));
+        Route longest = null;
+        if (node != null) {
+            longest = node.route;
+            for (String element : pathElements(uri)) {
+                node = node.children.get(element);
+                if (node == null) {
+                    break;
+                }
+                if (node.route != null) {
+                    longest = node.route;
+                }
+            }
+        }
+        if (longest != null) {
+            return longest;
+        }
+
+        if (combinedRegex != null) {
+            final Matcher m = combinedRegex.matcher(withoutQuery(uri));
+            if (m.matches()) {
+                for (int i = 0; i < regexRoutes.size(); i++) {
+                    if (m.start(groupName(i)) >= 0) {
+                        return regexRoutes.get(i);
+                    }
+                }
+            }
+        }
+
+        return defaultRoute;
+    }
+
+    public Route getDefaultRoute() {
+        return defaultRoute;
+    }
+
+    private static String origin(final URI uri) {
+        final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        final String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        return scheme + "://" + host + ":" + port;
+    }
+
+    private static List<String> pathElements(final URI uri) {
+        final String path = uri.getRawPath();
+        final List<String> elements = new ArrayList<>();
+        if (path == null) {
+            return elements;
+        }
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                elements.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return elements;
+    }
+
+    private static String withoutQuery(final URI uri) {
+        final String s = uri.toString();
+        int end = s.indexOf('?');
+        if (end < 0) {
+            end = s.indexOf('#');
+        }
+        return end < 0 ? s : s.substring(0, end);
+    }
+
+    private static String groupName(final int i) {
+        return "route" + i;
+    }
+
+    /**
+     * Prefix the names of the named groups of an expression, and of the back references to them, with the given
+     * string. Escapes, quotes and character classes are skipped, as they cannot hold groups.
+     */
+    static String renameGroups(final String regex, final String prefix) {
+        final StringBuilder result = new StringBuilder(regex.length() + 16);
+        int classDepth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                final char next = regex.charAt(i + 1);
+                if (next == 'Q') {
+                    final int quoteEnd = regex.indexOf("\\E", i + 2);
+                    final int end = quoteEnd < 0 ? regex.length() : quoteEnd + 2;
+                    result.append(regex, i, end);
+                    i = end;
+                } else if (next == 'k' && classDepth == 0 && regex.startsWith("<", i + 2)) {
+                    result.append("\\k<").append(prefix);
+                    i += 3;
+                } else {
+                    result.append(c).append(next);
+                    i += 2;
+                }
+                continue;
+            }
+            if (c == '[') {
+                classDepth++;
+            } else if (c == ']' && classDepth > 0) {
+                classDepth--;
+            } else if (classDepth == 0 && regex.startsWith("(?<", i) && i + 3 < regex.length()
+                    && Character.isLetter(regex.charAt(i + 3))) {
+                result.append("(?<").append(prefix);
+                i += 3;
+                continue;
+            }
+            result.append(c);
+            i++;
+        }
+        return result.toString();
+    }
+
+    public static final class Builder {
+        private final Route defaultRoute;
+        private final List<Map.Entry<URI, Route>> prefixes = new ArrayList<>();
+        private final List<Map.Entry<String, Route>> regexes = new ArrayList<>();
+
+        private Builder(final Route defaultRoute) {
+            this.defaultRoute = Objects.requireNonNull(defaultRoute);
+        }
+
+        /**
+         * Route URIs starting with the given scheme, host, port and path elements (whole elements only: a prefix of
+         * http://foo/bar matches http://foo/bar/baz, but not http://foo/barbaz).
+         */
+        public Builder prefix(final String prefix, final Route route) {
+            final URI uri = URI.create(prefix);
+            if (!uri.isAbsolute() || uri.isOpaque() || uri.getHost() == null) {
+                throw new IllegalArgumentException("prefix must be an absolute http(s) URL: " + prefix);
+            }
+            prefixes.add(new AbstractMap.SimpleImmutableEntry<>(uri, Objects.requireNonNull(route)));
+            return this;
+        }
+
+        /**
+         * Route URIs that, without query, match the given regular expression as a whole. Numbered back references
+         * are not supported, as all expressions end up in one pattern; use named groups instead, which may have the
+         * same names in different expressions.
+         */
+        public Builder regex(final String regex, final Route route) {
+            Pattern.compile(regex);
+            regexes.add(new AbstractMap.SimpleImmutableEntry<>(regex, Objects.requireNonNull(route)));
+            return this;
+        }
+
+        public RoutingTable build() {
+            return new RoutingTable(this);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package tv.xrm.qproxy.in;
+
+import tv.xrm.qproxy.Request;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Like the default policy, but with randomized retry delays, so that requests that failed together are not all
+ * retried at the same moment, and with an upper bound on the delay. A Retry-After header on a 503 or 429 response is
+ * honored up to that bound: the request is not retried sooner than asked, but never later than the bound either. 429
+ * is retried as well as 503.
+ */
+class BackoffLifecyclePolicy extends DefaultLifecyclePolicy {
+    private static final int MILLIS = 1000;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    enum Jitter {
+        /**
+         * A random delay between 0 and the exponential delay of the default policy.
+         */
+        FULL,
+        /**
+         * A random delay between one second and retryDelayBaseSeconds times the previous delay.
+         */
+        DECORRELATED;
+
+        static Jitter fromConfig(final String value) {
+            switch (value) {
+                case "full":
+                    return FULL;
+                case "decorrelated":
+                    return DECORRELATED;
+                default:
+                    throw new IllegalStateException("unknown retryJitter " + value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final long maxRetryDelayMillis;
+    private final Jitter jitter;
+
+    public BackoffLifecyclePolicy(int maxRetries, int retryDelayBaseSeconds, int maxRequestAgeSeconds,
+            int maxRetryDelaySeconds, Jitter jitter) {
+        super(maxRetries, retryDelayBaseSeconds, maxRequestAgeSeconds);
+        this.maxRetryDelayMillis = (long) MILLIS * maxRetryDelaySeconds;
+        this.jitter = Objects.requireNonNull(jitter);
+    }
+
+    @Override
+    public long shouldRetryIn(final Request req) {
+        return shouldRetryIn(req, NO_RESPONSE, -1);
+    }
+
+    @Override
+    public long shouldRetryIn(final Request req, final int httpStatusCode, final long retryAfterMillis) {
+        final long exponential = super.shouldRetryIn(req);
+        if (exponential == DO_NOT_RETRY) {
+            return DO_NOT_RETRY;
+        }
+        final long delay = jitter == Jitter.FULL ? fullJitter(exponential) : decorrelatedJitter(req);
+        return Math.min(maxRetryDelayMillis, Math.max(delay, retryAfterMillis));
+    }
+
+    @Override
+    public boolean shouldRetryOnStatus(final int httpStatusCode) {
+        return super.shouldRetryOnStatus(httpStatusCode) || httpStatusCode == SC_TOO_MANY_REQUESTS;
+    }
+
+    private long fullJitter(final long exponential) {
+        return ThreadLocalRandom.current().nextLong(Math.min(maxRetryDelayMillis, exponential) + 1);
+    }
+
+    /**
+     * Each delay depends on the one before, but only the retry count is kept with a request. So the delays are drawn
+     * from a random sequence seeded by the request, and replayed up to the current retry.
+     */
+    private long decorrelatedJitter(final Request req) {
+        final SplittableRandom random = new SplittableRandom(Objects.hashCode(req.getId())
+                ^ req.getReceivedTimestamp());
+        long delay = MILLIS;
+        for (int i = 0; i <= req.getRetryCount(); i++) {
+            final long upper = Math.min(maxRetryDelayMillis, delay * getRetryDelayBaseSeconds());
+            delay = upper <= MILLIS ? upper : random.nextLong(MILLIS, upper + 1);
+        }
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffLifecyclePolicy{" +
+                "jitter=" + jitter +
+                ", maxRetryDelayMillis=" + maxRetryDelayMillis +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+package tv.xrm.qproxy.in;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.QueueRegistry;
+import tv.xrm.qproxy.Request;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Accepts many requests in one POST, as newline-delimited JSON: one object per line with the target "url", optional
+ * "headers" (name to list of values) and the body as text ("body") or base64 ("bodyBase64"). Requests for the same
+ * queue are stored together. The response has one line per entry, in the same order, with its "status" (202 if it
+ * was queued) and either its "id" or an "error".
+ */
+public class BatchServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchServlet.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final ObjectReader ENTRY_READER = MAPPER.readerFor(Entry.class);
+
+    private static final ObjectWriter RESULT_WRITER = MAPPER.writer();
+
+    private final QueueRegistry queueRegistry;
+
+    private final int maxEntries;
+
+    private final long maxBatchBytes;
+
+    private final long maxLineBytes;
+
+    private final com.codahale.metrics.Timer batchTimer;
+
+    private final Meter entryMeter;
+
+    public BatchServlet(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry, final int maxEntries) {
+        this(queueRegistry, metricRegistry, maxEntries, 0, 0);
+    }
+
+    /**
+     * @param maxBatchBytes limit on the size of the whole batch; 0 for none
+     * @param maxLineBytes  limit on the size of each entry, in its JSON encoding; 0 for none
+     */
+    public BatchServlet(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry, final int maxEntries,
+            final long maxBatchBytes, final long maxLineBytes) {
+        this.queueRegistry = queueRegistry;
+        this.maxEntries = maxEntries;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLineBytes = maxLineBytes;
+
+        batchTimer = metricRegistry.timer(name(BatchServlet.class, "incoming-batches"));
+        entryMeter = metricRegistry.meter(name(BatchServlet.class, "incoming-entries"));
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        final com.codahale.metrics.Timer.Context timerContext = batchTimer.time();
+        try {
+            if (maxBatchBytes > 0 && req.getContentLengthLong() > maxBatchBytes) {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "batch larger than " + maxBatchBytes + " bytes");
+                return;
+            }
+
+            final long receivedTimestamp = System.currentTimeMillis();
+            final List<Map<String, Object>> results = new ArrayList<>();
+            final List<Request> valid = new ArrayList<>();
+            final List<Integer> validIndexes = new ArrayList<>();
+
+            try (InputStream in = req.getInputStream()) {
+                final LineReader reader = new LineReader(in, maxBatchBytes, maxLineBytes);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    if (results.size() == maxEntries) {
+                        resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                                "more than " + maxEntries + " entries");
+                        return;
+                    }
+                    try {
+                        valid.add(parseEntry(line, receivedTimestamp));
+                        validIndexes.add(results.size());
+                        results.add(null);
+                    } catch (IOException | URISyntaxException e) {
+                        results.add(result(HttpServletResponse.SC_BAD_REQUEST, "error", e.getMessage()));
+                    }
+                }
+            } catch (TooLargeException e) {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+                return;
+            }
+            entryMeter.mark(results.size());
+
+            final List<Request> enqueued = queueRegistry.enqueueAll(valid);
+            for (int i = 0; i < enqueued.size(); i++) {
+                final String id = enqueued.get(i).getId();
+                results.set(validIndexes.get(i), id != null ?
+                        result(HttpServletResponse.SC_ACCEPTED, "id", id) :
+                        result(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "error", "unable to enqueue"));
+            }
+
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/x-ndjson");
+            resp.setCharacterEncoding("UTF-8");
+            final PrintWriter out = resp.getWriter();
+            for (Map<String, Object> result : results) {
+                out.println(RESULT_WRITER.writeValueAsString(result));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("failed to process batch", e);
+            if (!resp.isCommitted()) {
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            }
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    static Request parseEntry(final String line, final long receivedTimestamp) throws IOException, URISyntaxException {
+        final Entry entry = ENTRY_READER.readValue(line);
+        final URI uri = ProxyServlet.checkAsURI(entry.url);
+
+        final Map<String, Collection<String>> headers = new HashMap<>();
+        if (entry.headers != null) {
+            entry.headers.forEach((header, values) -> {
+                if (!ProxyServlet.headerToIgnore(header)) {
+                    headers.put(header, values);
+                }
+            });
+        }
+
+        final byte[] body = entry.bodyBase64 != null ? entry.bodyBase64 :
+                entry.body != null ? entry.body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return new Request(uri, headers, Channels.newChannel(new ByteArrayInputStream(body)), null, 0,
+                receivedTimestamp);
+    }
+
+    private static Map<String, Object> result(final int status, final String key, final String value) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("status", status);
+        result.put(key, value);
+        return result;
+    }
+
+    /**
+     * Splits a UTF-8 stream into lines, as {@link java.io.BufferedReader#readLine()} does, but without ever holding
+     * more than one line of a limited size, or reading more than a limited number of bytes in all.
+     */
+    static final class LineReader {
+        private final InputStream in;
+        private final long maxTotalBytes;
+        private final long maxLineBytes;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private long totalBytes;
+
+        /**
+         * @param maxTotalBytes 0 for no limit
+         * @param maxLineBytes  0 for no limit
+         */
+        LineReader(final InputStream in, final long maxTotalBytes, final long maxLineBytes) {
+            this.in = new BufferedInputStream(in);
+            this.maxTotalBytes = maxTotalBytes;
+            this.maxLineBytes = maxLineBytes;
+        }
+
+        /**
+         * @return the next line without its terminator, or null at the end of the stream
+         * @throws TooLargeException if a limit has been exceeded
+         */
+        String readLine() throws IOException {
+            line.reset();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (maxTotalBytes > 0 && ++totalBytes > maxTotalBytes) {
+                    throw new TooLargeException("batch larger than " + maxTotalBytes + " bytes");
+                }
+                if (b == '\n') {
+                    return lineWithoutCarriageReturn();
+                }
+                if (maxLineBytes > 0 && line.size() >= maxLineBytes) {
+                    throw new TooLargeException("entry larger than " + maxLineBytes + " bytes");
+                }
+                line.write(b);
+            }
+            return line.size() > 0 ? lineWithoutCarriageReturn() : null;
+        }
+
+        private String lineWithoutCarriageReturn() {
+            final String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+        }
+    }
+
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(final String message) {
+            super(message);
+        }
+    }
+
+    static final class Entry {
+        final String url;
+        final Map<String, List<String>> headers;
+        final String body;
+        final byte[] bodyBase64;
+
+        @JsonCreator
+        Entry(@JsonProperty("url") String url,
+              @JsonProperty("headers") Map<String, List<String>> headers,
+              @JsonProperty("body") String body,
+              @JsonProperty("bodyBase64") byte[] bodyBase64) {
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+            this.bodyBase64 = bodyBase64;
+        }
+    }
+}
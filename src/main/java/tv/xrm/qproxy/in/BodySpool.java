@@ -0,0 +1,126 @@
+package tv.xrm.qproxy.in;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects a request body that arrives in chunks: in memory up to a limit, then in a temporary file. Not thread safe;
+ * callers that may write and close it from different threads, such as a read listener and a timeout, have to
+ * coordinate.
+ */
+final class BodySpool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(BodySpool.class);
+
+    static final String FILE_PREFIX = "qproxy-ingest-";
+
+    private final Path spoolDir;
+    private final int maxMemoryBytes;
+
+    private byte[] memory = new byte[1024];
+    private int memoryLength;
+
+    private Path file;
+    private FileChannel fileChannel;
+
+    BodySpool(final Path spoolDir, final int maxMemoryBytes) {
+        this.spoolDir = spoolDir;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    void write(final byte[] chunk, final int offset, final int length) throws IOException {
+        if (fileChannel == null && memoryLength + length <= maxMemoryBytes) {
+            if (memoryLength + length > memory.length) {
+                memory = Arrays.copyOf(memory, Math.min(maxMemoryBytes, Math.max(memory.length * 2,
+                        memoryLength + length)));
+            }
+            System.arraycopy(chunk, offset, memory, memoryLength, length);
+            memoryLength += length;
+            return;
+        }
+
+        if (fileChannel == null) {
+            file = Files.createTempFile(spoolDir, FILE_PREFIX, ".tmp");
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writeFully(ByteBuffer.wrap(memory, 0, memoryLength));
+            memory = null;
+        }
+        writeFully(ByteBuffer.wrap(chunk, offset, length));
+    }
+
+    /**
+     * The body collected so far, from the beginning. The spool must stay open while the channel is read.
+     */
+    ReadableByteChannel channel() throws IOException {
+        if (fileChannel == null) {
+            return Channels.newChannel(new ByteArrayInputStream(memory, 0, memoryLength));
+        }
+        fileChannel.position(0);
+        return new NonClosingChannel(fileChannel);
+    }
+
+    /**
+     * The body collected so far, if it has been kept in memory; otherwise null. Valid until the spool is closed.
+     */
+    ByteBuffer inMemory() {
+        return fileChannel == null && memory != null ? ByteBuffer.wrap(memory, 0, memoryLength) : null;
+    }
+
+    @Override
+    public void close() {
+        memory = null;
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("unable to delete spool file {}", file, e);
+        }
+        fileChannel = null;
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Storage closes the body it has read; the spool file is only closed (and deleted) with the spool.
+     */
+    private static final class NonClosingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel delegate;
+
+        NonClosingChannel(final ReadableByteChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // closed by the spool
+        }
+    }
+}
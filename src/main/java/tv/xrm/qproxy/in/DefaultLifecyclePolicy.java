@@ -19,6 +19,10 @@ class DefaultLifecyclePolicy implements LifecyclePolicy {
         this.maxRequestAgeSeconds = maxRequestAgeSeconds;
     }
 
+    int getRetryDelayBaseSeconds() {
+        return retryDelayBaseSeconds;
+    }
+
     @Override
     public boolean isSuccessfullyDelivered(final int httpStatusCode) {
         return httpStatusCode >= HttpServletResponse.SC_OK && httpStatusCode < HttpServletResponse.SC_MULTIPLE_CHOICES;
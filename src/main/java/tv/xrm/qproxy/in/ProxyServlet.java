@@ -2,23 +2,39 @@ package tv.xrm.qproxy.in;
 
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tv.xrm.qproxy.QueueRegistry;
 import tv.xrm.qproxy.Request;
 import tv.xrm.qproxy.RequestQueue;
+import tv.xrm.qproxy.out.DirectDelivery;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -30,45 +46,475 @@ public class ProxyServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(ProxyServlet.class);
 
-    private final QueueRegistry queueRegistry;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final RouteCache routes;
 
     private final com.codahale.metrics.Timer requestTimer;
 
     private final String info;
 
+    private final Path spoolDir;
+
+    private final int spoolMemoryBytes;
+
+    private final long asyncTimeoutMillis;
+
+    private final long retryAfterSeconds;
+
+    private final long maxContentLengthBytes;
+
+    private final DirectDelivery directDelivery;
+
     public ProxyServlet(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry, String info) {
-        this.queueRegistry = queueRegistry;
-        this.info = info;
+        this(builder(queueRegistry, metricRegistry, info));
+    }
+
+    private ProxyServlet(final Builder builder) {
+        this.routes = new RouteCache(builder.queueRegistry, builder.metricRegistry, builder.routeCacheSize);
+        this.info = builder.info;
+        this.spoolDir = builder.spoolDir;
+        this.spoolMemoryBytes = builder.spoolMemoryBytes;
+        this.asyncTimeoutMillis = builder.asyncTimeoutMillis;
+        this.retryAfterSeconds = builder.retryAfterSeconds;
+        this.maxContentLengthBytes = builder.maxContentLengthBytes;
+        this.directDelivery = builder.directDelivery;
+
+        requestTimer = builder.metricRegistry.timer(name(ProxyServlet.class, "incoming-requests"));
+    }
 
-        requestTimer = metricRegistry.timer(name(ProxyServlet.class, "incoming-requests"));
+    public static Builder builder(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry,
+            final String info) {
+        return new Builder(queueRegistry, metricRegistry, info);
+    }
+
+    public static final class Builder {
+        private final QueueRegistry queueRegistry;
+        private final MetricRegistry metricRegistry;
+        private final String info;
+        private long routeCacheSize;
+        private Path spoolDir;
+        private int spoolMemoryBytes;
+        private long asyncTimeoutMillis;
+        private long retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+        private long maxContentLengthBytes;
+        private DirectDelivery directDelivery;
+
+        private Builder(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry, final String info) {
+            this.queueRegistry = Objects.requireNonNull(queueRegistry);
+            this.metricRegistry = Objects.requireNonNull(metricRegistry);
+            this.info = info;
+        }
+
+        /**
+         * Number of target URLs for which the parsed URI and queue are remembered; 0, the default, for none.
+         */
+        public Builder routeCacheSize(final long routeCacheSize) {
+            this.routeCacheSize = routeCacheSize;
+            return this;
+        }
+
+        /**
+         * Collect bodies in the given directory while they arrive, keeping up to spoolMemoryBytes of each in memory.
+         * Without this, bodies are read with blocking I/O on the container thread.
+         */
+        public Builder spool(final Path spoolDir, final int spoolMemoryBytes, final long asyncTimeoutMillis) {
+            this.spoolDir = Objects.requireNonNull(spoolDir);
+            this.spoolMemoryBytes = spoolMemoryBytes;
+            this.asyncTimeoutMillis = asyncTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sent as Retry-After when a request is turned away because its queue is full.
+         */
+        public Builder retryAfterSeconds(final long retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        /**
+         * Requests announcing a larger body are refused; 0, the default, for no limit.
+         */
+        public Builder maxContentLengthBytes(final long maxContentLengthBytes) {
+            this.maxContentLengthBytes = maxContentLengthBytes;
+            return this;
+        }
+
+        /**
+         * If set, small requests to targets without a backlog are first tried directly, and only stored if that
+         * fails.
+         */
+        public Builder directDelivery(final DirectDelivery directDelivery) {
+            this.directDelivery = directDelivery;
+            return this;
+        }
+
+        public ProxyServlet build() {
+            return new ProxyServlet(this);
+        }
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
+        com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
         try {
-            final URI uri;
+            // Admission is decided from the request line and headers alone, before the body is touched: a client
+            // that sent "Expect: 100-continue" is then turned away without uploading its body at all.
+            final long contentLength = req.getContentLengthLong();
+            if (maxContentLengthBytes > 0 && contentLength > maxContentLengthBytes) {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "body larger than " + maxContentLengthBytes + " bytes");
+                return;
+            }
+
+            final RouteCache.Route route;
             try {
-                final String uriParam = req.getParameter("url");
-                uri = checkAsURI(uriParam);
+                route = routes.resolve(queryParameter(req.getQueryString(), "url"));
             } catch (URISyntaxException e) {
                 resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
                 return;
             }
 
+            try {
+                routes.checkAdmission(route, contentLength);
+            } catch (RequestQueue.QueueFullException e) {
+                rejectQueueFull(resp, e);
+                return;
+            }
+
+            if (spoolDir != null && req.isAsyncSupported()) {
+                startAsyncIngestion(req, route, timerContext);
+                timerContext = null;
+                return;
+            }
+
             try (InputStream is = req.getInputStream()) {
-                RequestQueue queue = queueRegistry.getQueue(uri);
-                Map<String, Collection<String>> headers = extractHeaders(req);
-                Request idRequest = queue.enqueue(
-                        new Request(uri, headers, Channels.newChannel(is), null, 0, System.currentTimeMillis()));
+                final Map<String, Collection<String>> headers = extractHeaders(req);
+                final long receivedTimestamp = System.currentTimeMillis();
+                if (directDelivery != null && directDelivery.streams(contentLength) && !routes.hasBacklog(route)) {
+                    streamAndStore(route, headers, is, contentLength, receivedTimestamp, resp);
+                    return;
+                }
+                ReadableByteChannel body = Channels.newChannel(is);
+                if (shouldDeliverDirectly(route, contentLength)) {
+                    final byte[] bytes = ByteStreams.toByteArray(is);
+                    if (deliverDirectly(new Request(route.uri, headers, null, null, 0, receivedTimestamp), bytes)) {
+                        acceptDelivered(resp);
+                        return;
+                    }
+                    body = Channels.newChannel(new ByteArrayInputStream(bytes));
+                }
+                Request idRequest = routes.enqueue(route,
+                        new Request(route.uri, headers, body, null, 0, receivedTimestamp));
                 resp.setStatus(HttpServletResponse.SC_ACCEPTED);
                 resp.setHeader("X-XRM-Stored-As", idRequest.getId());
+            } catch (RequestQueue.QueueFullException e) {
+                rejectQueueFull(resp, e);
             } catch (IOException | RuntimeException e) {
                 LOG.warn("failed to process request", e);
                 resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
             }
         } finally {
+            if (timerContext != null) {
+                timerContext.stop();
+            }
+        }
+    }
+
+    private boolean shouldDeliverDirectly(final RouteCache.Route route, final long bodyBytes) {
+        return directDelivery != null && directDelivery.accepts(bodyBytes) && !routes.hasBacklog(route);
+    }
+
+    private boolean deliverDirectly(final Request req, final byte[] body) {
+        try {
+            return directDelivery.deliver(req, ByteBuffer.wrap(body));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Store the request while its body is streamed to the target at the same time. The stored copy is submitted to
+     * the queue, as the source of retries, only if the target does not take the request; otherwise it is deleted.
+     * Room in the queue is reserved before the target sees any of the request, so that a request the target may
+     * already have taken is never rejected for its size. The client is only answered once the target has answered
+     * and, if need be, the request has been queued: the queue may have filled up in the meantime, in which case the
+     * request is turned away after all rather than acknowledged and lost.
+     */
+    private void streamAndStore(final RouteCache.Route route, final Map<String, Collection<String>> headers,
+            final InputStream is, final long contentLength, final long receivedTimestamp,
+            final HttpServletResponse resp) throws IOException {
+        final RequestQueue.Admission admission = routes.admit(route, contentLength);
+        final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        final ReadableByteChannel tee;
+        try {
+            tee = directDelivery.stream(new Request(route.uri, headers, null, null, 0, receivedTimestamp),
+                    Channels.newChannel(is), outcome::complete);
+        } catch (RuntimeException e) {
+            admission.cancel();
+            throw e;
+        }
+
+        final Request stored;
+        try {
+            stored = admission.store(new Request(route.uri, headers, tee, null, 0, receivedTimestamp));
+        } finally {
+            // aborts the upstream request unless the whole body has been passed on
+            tee.close();
+        }
+
+        final RequestQueue queue = admission.getQueue();
+        if (awaitOutcome(outcome)) {
+            queue.cleanup(stored.getId());
+            acceptDelivered(resp);
+            return;
+        }
+        queue.submit(stored);
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        resp.setHeader("X-XRM-Stored-As", stored.getId());
+    }
+
+    private static boolean awaitOutcome(final CompletableFuture<Boolean> outcome) {
+        try {
+            return outcome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static void acceptDelivered(final HttpServletResponse resp) {
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        resp.setHeader("X-XRM-Delivered", "direct");
+    }
+
+    private void startAsyncIngestion(final HttpServletRequest req, final RouteCache.Route route,
+            final com.codahale.metrics.Timer.Context timerContext) throws IOException {
+        final Map<String, Collection<String>> headers = extractHeaders(req);
+        final AsyncContext async = req.startAsync();
+        async.setTimeout(asyncTimeoutMillis);
+
+        final AsyncIngestion ingestion = new AsyncIngestion(async, route, headers, timerContext);
+        async.addListener(ingestion);
+        req.getInputStream().setReadListener(ingestion);
+    }
+
+    /**
+     * Reads the body as it becomes available, without blocking a container thread while waiting for the client, and
+     * enqueues the request once it is complete.
+     */
+    private final class AsyncIngestion implements ReadListener, AsyncListener {
+        private final AsyncContext async;
+        private final RouteCache.Route route;
+        private final Map<String, Collection<String>> headers;
+        private final com.codahale.metrics.Timer.Context timerContext;
+
+        private final BodySpool spool = new BodySpool(spoolDir, spoolMemoryBytes);
+        private final byte[] buffer = new byte[8192];
+        private final AtomicReference<IngestionState> state = new AtomicReference<>(IngestionState.READING);
+
+        AsyncIngestion(final AsyncContext async, final RouteCache.Route route, final Map<String, Collection<String>> headers,
+                final com.codahale.metrics.Timer.Context timerContext) {
+            this.async = async;
+            this.route = route;
+            this.headers = headers;
+            this.timerContext = timerContext;
+        }
+
+        /**
+         * Whoever moves {@link #state} on from reading owns the spool from then on; until then, writes to it and
+         * closing it are serialized on the spool, so that a timeout or error cannot close it in the middle of a write.
+         */
+        @Override
+        public void onDataAvailable() throws IOException {
+            final ServletInputStream in = async.getRequest().getInputStream();
+            while (in.isReady() && !in.isFinished()) {
+                final int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                synchronized (spool) {
+                    if (state.get() != IngestionState.READING) {
+                        return;
+                    }
+                    spool.write(buffer, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            final long receivedTimestamp = System.currentTimeMillis();
+            final ByteBuffer inMemory = spool.inMemory();
+            if (inMemory != null && shouldDeliverDirectly(route, inMemory.remaining())) {
+                if (!state.compareAndSet(IngestionState.READING, IngestionState.DELIVERING)) {
+                    return;
+                }
+                // the body is complete, so the timeout for receiving it no longer applies; leave the attempt time to
+                // finish and the request time to be stored after a failed one
+                async.setTimeout(directDelivery.getTimeoutMillis() + asyncTimeoutMillis);
+                directDelivery.deliver(new Request(route.uri, headers, null, null, 0, receivedTimestamp), inMemory,
+                        handled -> {
+                            if (!state.compareAndSet(IngestionState.DELIVERING, IngestionState.DONE)) {
+                                // answered already, see abandonDelivery()
+                                LOG.warn("direct delivery for {} finished after the response; {}", route.uri,
+                                        handled ? "delivered" : "dropped, the client has to retry");
+                                closeSpool();
+                                return;
+                            }
+                            if (handled) {
+                                acceptDelivered((HttpServletResponse) async.getResponse());
+                                finish();
+                            } else {
+                                enqueue(receivedTimestamp);
+                            }
+                        });
+                return;
+            }
+            if (state.compareAndSet(IngestionState.READING, IngestionState.DONE)) {
+                enqueue(receivedTimestamp);
+            }
+        }
+
+        /**
+         * Store and queue the request; may run on a thread of the HTTP client, after a failed direct delivery.
+         */
+        private void enqueue(final long receivedTimestamp) {
+            final HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+            try {
+                try {
+                    Request idRequest = routes.enqueue(route,
+                            new Request(route.uri, headers, spool.channel(), null, 0, receivedTimestamp));
+                    resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+                    resp.setHeader("X-XRM-Stored-As", idRequest.getId());
+                } catch (RequestQueue.QueueFullException e) {
+                    rejectQueueFull(resp, e);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("failed to process request", e);
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                }
+            } catch (IOException e) {
+                LOG.info("failed to send response for {}: {}", route.uri, e.toString());
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            if (state.compareAndSet(IngestionState.READING, IngestionState.DONE)) {
+                LOG.info("failed to read request body for {}: {}", route.uri, t.toString());
+                finish();
+            } else if (state.compareAndSet(IngestionState.DELIVERING, IngestionState.ABANDONED)) {
+                LOG.info("connection for {} failed during direct delivery: {}", route.uri, t.toString());
+                abandonDelivery();
+            }
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            if (state.compareAndSet(IngestionState.READING, IngestionState.DONE)) {
+                LOG.info("request body for {} not received within {} ms", route.uri, asyncTimeoutMillis);
+                ((HttpServletResponse) async.getResponse()).sendError(HttpServletResponse.SC_REQUEST_TIMEOUT);
+                finish();
+            } else if (state.compareAndSet(IngestionState.DELIVERING, IngestionState.ABANDONED)) {
+                LOG.warn("direct delivery for {} did not finish in time", route.uri);
+                final HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+                resp.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "delivery did not finish in time");
+                abandonDelivery();
+            }
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            // nothing to do
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // nothing to do
+        }
+
+        /**
+         * Complete the response while the attempt is still running; its callback closes the spool, which holds the
+         * body being sent, and drops the request if the attempt failed.
+         */
+        private void abandonDelivery() {
             timerContext.stop();
+            async.complete();
+        }
+
+        private void finish() {
+            closeSpool();
+            timerContext.stop();
+            async.complete();
+        }
+
+        private void closeSpool() {
+            synchronized (spool) {
+                spool.close();
+            }
+        }
+    }
+
+    /**
+     * Where an {@link AsyncIngestion} is: only the first move from READING or DELIVERING answers the client.
+     */
+    private enum IngestionState {
+        READING,
+        /** Body complete, direct delivery attempt running; the response waits for its outcome. */
+        DELIVERING,
+        /** Timed out or failed during delivery; answered already, but the attempt still owns the body. */
+        ABANDONED,
+        DONE
+    }
+
+    /**
+     * 429 if the target's queue is full, 503 if all of qproxy is.
+     */
+    private void rejectQueueFull(final HttpServletResponse resp, final RequestQueue.QueueFullException e)
+            throws IOException {
+        LOG.debug("rejecting request: {}", e.getMessage());
+        resp.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        resp.sendError(e.isGlobal() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : SC_TOO_MANY_REQUESTS,
+                e.getMessage());
+    }
+
+    /**
+     * A parameter from the query string only. {@link HttpServletRequest#getParameter(String)} would also parse a form
+     * body, reading it before admission has been decided and leaving nothing to be stored.
+     */
+    static String queryParameter(final String query, final String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            final String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (decode(key).equals(name)) {
+                return eq < 0 ? "" : decode(pair.substring(eq + 1));
+            }
+        }
+        return null;
+    }
+
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
         }
     }
 
@@ -110,7 +556,7 @@ public class ProxyServlet extends HttpServlet {
         return map;
     }
 
-    private boolean headerToIgnore(String header) {
+    static boolean headerToIgnore(String header) {
         return header.equalsIgnoreCase("Transfer-Encoding")
                 || header.equalsIgnoreCase("Content-Length");
     }
@@ -0,0 +1,111 @@
+package tv.xrm.qproxy.in;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import tv.xrm.qproxy.QueueRegistry;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.function.Function;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Remembers, for target URLs as sent by clients, the validated URI and the queue it maps to, so that a request to a
+ * known URL costs one cache lookup instead of URI parsing and queue key computation. Invalid URLs are not cached.
+ */
+final class RouteCache {
+    private final QueueRegistry queueRegistry;
+
+    private final Cache<String, Route> routes;
+
+    static final class Route {
+        final URI uri;
+
+        /**
+         * The queue last used for this route; replaced when it has been retired.
+         */
+        volatile RequestQueue queue;
+
+        Route(URI uri) {
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * @param maxSize maximum number of URLs to remember; 0 disables caching
+     */
+    RouteCache(final QueueRegistry queueRegistry, final MetricRegistry metricRegistry, final long maxSize) {
+        this.queueRegistry = queueRegistry;
+        this.routes = maxSize > 0 ? CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build() : null;
+
+        if (routes != null) {
+            metricRegistry.register(name(RouteCache.class, "hit-ratio"), (Gauge<Double>) () -> routes.stats().hitRate());
+        }
+    }
+
+    Route resolve(final String url) throws URISyntaxException {
+        Route route = routes != null && url != null ? routes.getIfPresent(url) : null;
+        if (route == null) {
+            route = new Route(ProxyServlet.checkAsURI(url));
+            if (routes != null) {
+                routes.put(url, route);
+            }
+        }
+        return route;
+    }
+
+    /**
+     * @param req a request for the route's URI
+     */
+    Request enqueue(final Route route, final Request req) {
+        return withQueue(route, queue -> queue.enqueue(req));
+    }
+
+    /**
+     * Reserve room for a request in the route's queue before reading its body; see {@link RequestQueue#admit(long)}.
+     */
+    RequestQueue.Admission admit(final Route route, final long expectedBytes) {
+        return withQueue(route, queue -> queue.admit(expectedBytes));
+    }
+
+    private <T> T withQueue(final Route route, final Function<RequestQueue, T> action) {
+        RequestQueue queue = route.queue;
+        while (true) {
+            queue = current(route, queue);
+            try {
+                return action.apply(queue);
+            } catch (RequestQueue.QueueRetiredException e) {
+                // evicted between lookup and enqueue; look up its replacement
+                queue = null;
+            }
+        }
+    }
+
+    /**
+     * @throws RequestQueue.QueueFullException if the route's queue would not accept a body of about the given size
+     */
+    void checkAdmission(final Route route, final long expectedBytes) {
+        current(route, route.queue).checkAdmission(expectedBytes);
+    }
+
+    /**
+     * Whether the route's queue has any requests waiting, in delivery or waiting for a retry.
+     */
+    boolean hasBacklog(final Route route) {
+        return current(route, route.queue).hasOutstanding();
+    }
+
+    private RequestQueue current(final Route route, final RequestQueue queue) {
+        if (queue != null && !queue.isRetired()) {
+            return queue;
+        }
+        final RequestQueue replacement = queueRegistry.getQueue(route.uri);
+        route.queue = replacement;
+        return replacement;
+    }
+}
@@ -1,14 +1,28 @@
 package tv.xrm.qproxy.in;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.servlets.MetricsServlet;
+import com.google.common.base.Splitter;
 import net.e175.klaus.config.Config;
 import net.e175.klaus.config.ConfigValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tv.xrm.qproxy.*;
+import tv.xrm.qproxy.out.AsyncRequestDispatcher;
+import tv.xrm.qproxy.out.CircuitBreaker;
+import tv.xrm.qproxy.out.ConcurrencyLimit;
 import tv.xrm.qproxy.out.DefaultRequestDispatcher;
+import tv.xrm.qproxy.out.DirectDelivery;
+import tv.xrm.qproxy.out.SharedDispatchScheduler;
+import tv.xrm.qproxy.out.SharedHttpClient;
+import tv.xrm.qproxy.out.SharedPoolRequestDispatcher;
+import tv.xrm.qproxy.storage.Durability;
 import tv.xrm.qproxy.storage.FileStorage;
+import tv.xrm.qproxy.storage.GroupCommit;
+import tv.xrm.qproxy.storage.SegmentedStorage;
+import tv.xrm.qproxy.storage.StripedStorage;
+import tv.xrm.qproxy.storage.TieredStorage;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -17,10 +31,18 @@ import javax.servlet.ServletRegistration;
 import javax.servlet.annotation.WebListener;
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static net.e175.klaus.config.PropertiesConfigBuilder.defaultFromClassloader;
 
 /**
@@ -30,50 +52,328 @@ import static net.e175.klaus.config.PropertiesConfigBuilder.defaultFromClassload
 public class Setup implements ServletContextListener {
     private static final String DEFAULT_DATA_ROOT = System.getProperty("java.io.tmpdir");
 
+    private static final int RETRY_TIMER_TICKS_PER_WHEEL = 512;
+
+    private static final long RECOVERY_ENQUEUE_WAIT_MILLIS = 30000;
+
     private static final Logger LOG = LoggerFactory.getLogger(Setup.class);
 
+    private HashedWheelTimer delayTimer;
+
+    private SharedDispatchScheduler sharedScheduler;
+
+    private SharedHttpClient sharedClient;
+
+    private ScheduledExecutorService queueEvictor;
+
+    private Thread recoveryThread;
+
+    private DirectDelivery directDelivery;
+
+    private final List<GroupCommit> groupCommits = new ArrayList<>();
+
     @Override
     public void contextInitialized(ServletContextEvent sce) {
         final Config config = defaultFromClassloader("qproxy.properties")
                 .overrideFromFilesystem(System.getProperty("qproxy.configFile")).load();
 
-        final Path basedir = getBasedir(config);
-        final RequestStorage storage = new FileStorage(basedir);
-
+        final List<Path> basedirs = getBasedirs(config);
         final MetricRegistry metricRegistry = new MetricRegistry();
 
-        final LifecyclePolicy lifecyclePolicy = new DefaultLifecyclePolicy((int) config.key("maxRetries").asLong(),
-                (int) config.key("retryDelayBaseSeconds").asLong(), (int) config.key("maxRequestAgeSeconds").asLong());
+        final RequestStorage storage = createStorage(config, basedirs, metricRegistry);
+
+        delayTimer = new HashedWheelTimer("RequestQueue_delayTimer", config.key("retryTimerTickMillis").asLong(),
+                RETRY_TIMER_TICKS_PER_WHEEL);
+        metricRegistry.register(name(HashedWheelTimer.class, "pending-timers"),
+                (Gauge<Integer>) delayTimer::getPendingCount);
+        metricRegistry.register(name(HashedWheelTimer.class, "tick-lag-millis"),
+                (Gauge<Long>) delayTimer::getTickLagMillis);
+
+        final LifecyclePolicy lifecyclePolicy = createLifecyclePolicy(config);
 
         final int queueCapacity = (int) config.key("queueCapacity").asLong();
+        final QueueType queueType = QueueType.fromConfig(config.key("queueType").asString());
         final int posterThreadCount = (int) config.key("posterThreadCount").asLong();
         final int pathAggregationLevels = (int) config.key("pathAggregationLevels").asLong();
-        final int maxContentLengthBytes = (int) config.key("maxContentLengthBytes").asLong();
+        final int maxLoggedResponseBytes = (int) config.key("maxLoggedResponseBytes").asLong();
         final int timeoutMillis = (int) config.key("timeoutMillis").asLong();
+        final long mmapThresholdBytes = config.key("mmapThresholdBytes").asLong();
+        final String dispatcherMode = config.key("dispatcherMode").asString();
+        final int maxInFlightPerQueue = (int) config.key("maxInFlightPerQueue").asLong();
+        final boolean adaptiveConcurrency = config.key("adaptiveConcurrency").isTrue();
+        final int adaptiveConcurrencyMin = (int) config.key("adaptiveConcurrencyMin").asLong();
+        final long adaptiveConcurrencyLatencyMillis = config.key("adaptiveConcurrencyLatencyMillis").asLong();
+        final int circuitBreakerFailures = (int) config.key("circuitBreakerFailures").asLong();
+        final long circuitBreakerOpenMillis = config.key("circuitBreakerOpenMillis").asLong();
+        final long maxQueuedBytes = config.key("maxQueuedBytes").asLong();
+        final long maxTotalQueuedBytes = config.key("maxTotalQueuedBytes").asLong();
+        final ByteBudget globalBudget = maxTotalQueuedBytes > 0 ? new ByteBudget(maxTotalQueuedBytes) : null;
+        if (globalBudget != null) {
+            metricRegistry.register(name(RequestQueue.class, "total-queued-bytes"),
+                    (Gauge<Long>) globalBudget::getUsed);
+        }
+
+        final String httpClientMode = config.key("httpClientMode").asString();
+        switch (httpClientMode) {
+            case "perQueue":
+                break;
+            case "shared":
+                sharedClient = new SharedHttpClient(metricRegistry, (int) config.key("sharedClientSelectors").asLong(),
+                        (int) config.key("sharedClientMaxConnectionsPerDestination").asLong(),
+                        config.key("sharedClientIdleTimeoutMillis").asLong(),
+                        config.key("sharedClientKeepAlive").isTrue());
+                sharedClient.start();
+                break;
+            default:
+                throw new IllegalStateException("unknown httpClientMode " + httpClientMode);
+        }
+
+        if ("shared".equals(dispatcherMode)) {
+            if (sharedClient == null) {
+                // with an HTTP client per queue, every queue would still cost threads of its own
+                throw new IllegalStateException("dispatcherMode shared requires httpClientMode shared");
+            }
+            sharedScheduler = new SharedDispatchScheduler(metricRegistry,
+                    (int) config.key("sharedPosterThreadCount").asLong(), (int) config.key("sharedQuantum").asLong(),
+                    posterThreadCount);
+            sharedScheduler.start();
+        }
 
         final QueueRegistry qReg = new QueueRegistry(new QueueRegistry.RequestQueueAndDispatcherFactory() {
             @Override
-            public RequestQueue getQueue(final String id) {
-                return new RequestQueue(id, storage, metricRegistry, queueCapacity);
+            public RequestQueue getQueue(final String id, final RoutingTable.Route route) {
+                return new RequestQueue(id, storage, metricRegistry,
+                        orDefault(route.getQueueCapacity(), queueCapacity), delayTimer, queueType, maxQueuedBytes,
+                        globalBudget);
             }
 
             @Override
-            public RequestDispatcher getDispatcher(final RequestQueue queue) {
-                return new DefaultRequestDispatcher(queue, metricRegistry, lifecyclePolicy, posterThreadCount,
-                        maxContentLengthBytes, timeoutMillis);
+            public RequestDispatcher getDispatcher(final RequestQueue queue, final RoutingTable.Route route) {
+                switch (dispatcherMode) {
+                    case "blocking":
+                        final int threads = orDefault(route.getPosterThreadCount(), posterThreadCount);
+                        return new DefaultRequestDispatcher(queue, metricRegistry, lifecyclePolicy, threads,
+                                maxLoggedResponseBytes, timeoutMillis, mmapThresholdBytes, sharedClient,
+                                concurrencyLimit(threads),
+                                new CircuitBreaker(queue.getQueueId(), circuitBreakerFailures,
+                                        circuitBreakerOpenMillis));
+                    case "async":
+                        return new AsyncRequestDispatcher(queue, metricRegistry, lifecyclePolicy,
+                                maxLoggedResponseBytes, timeoutMillis, mmapThresholdBytes, sharedClient,
+                                concurrencyLimit(orDefault(route.getMaxInFlightPerQueue(), maxInFlightPerQueue)),
+                                new CircuitBreaker(queue.getQueueId(), circuitBreakerFailures,
+                                        circuitBreakerOpenMillis));
+                    case "shared":
+                        return new SharedPoolRequestDispatcher(queue, sharedScheduler, metricRegistry,
+                                lifecyclePolicy, orDefault(route.getWeight(), 1), maxLoggedResponseBytes, timeoutMillis,
+                                mmapThresholdBytes, sharedClient);
+                    default:
+                        throw new IllegalStateException("unknown dispatcherMode " + dispatcherMode);
+                }
+            }
+
+            private ConcurrencyLimit concurrencyLimit(final int max) {
+                return adaptiveConcurrency ?
+                        ConcurrencyLimit.adaptive(Math.min(adaptiveConcurrencyMin, max), max,
+                                adaptiveConcurrencyLatencyMillis) :
+                        ConcurrencyLimit.fixed(max);
             }
-        }, pathAggregationLevels);
+        }, createRoutingTable(config, pathAggregationLevels));
 
         final ServletContext sc = sce.getServletContext();
         sc.setAttribute(MetricsServlet.METRICS_REGISTRY, metricRegistry);
 
-        ServletRegistration proxySr = sc.addServlet("proxy", new ProxyServlet(qReg, metricRegistry, config.toString()));
+        final long routeCacheSize = config.key("routeCacheSize").asLong();
+        final String ingestMode = config.key("ingestMode").asString();
+        final long queueFullRetryAfterSeconds = config.key("queueFullRetryAfterSeconds").asLong();
+        final long maxContentLengthBytes = config.key("maxContentLengthBytes").asLong();
+        final int directDeliveryMaxBodyBytes = (int) config.key("directDeliveryMaxBodyBytes").asLong();
+        final long streamingMinBodyBytes = config.key("streamingMinBodyBytes").asLong();
+        if (directDeliveryMaxBodyBytes > 0 || streamingMinBodyBytes > 0) {
+            directDelivery = new DirectDelivery(metricRegistry, lifecyclePolicy, directDeliveryMaxBodyBytes,
+                    streamingMinBodyBytes, (int) config.key("directDeliveryTimeoutMillis").asLong(),
+                    maxLoggedResponseBytes, sharedClient);
+            directDelivery.start();
+        }
+        final ProxyServlet.Builder proxy = ProxyServlet.builder(qReg, metricRegistry, config.toString())
+                .routeCacheSize(routeCacheSize)
+                .retryAfterSeconds(queueFullRetryAfterSeconds)
+                .maxContentLengthBytes(maxContentLengthBytes)
+                .directDelivery(directDelivery);
+        final ServletRegistration.Dynamic proxySr;
+        switch (ingestMode) {
+            case "blocking":
+                proxySr = sc.addServlet("proxy", proxy.build());
+                break;
+            case "async":
+                proxySr = sc.addServlet("proxy", proxy.spool(createSpoolDir(basedirs.get(0)),
+                        (int) config.key("asyncIngestMemoryBytes").asLong(),
+                        config.key("asyncIngestTimeoutMillis").asLong()).build());
+                proxySr.setAsyncSupported(true);
+                break;
+            default:
+                throw new IllegalStateException("unknown ingestMode " + ingestMode);
+        }
         proxySr.addMapping("/");
 
+        final String batchPath = config.key("batchPath").asString();
+        if (!batchPath.isEmpty()) {
+            ServletRegistration batchSr = sc.addServlet("batch",
+                    new BatchServlet(qReg, metricRegistry, (int) config.key("batchMaxEntries").asLong(),
+                            config.key("batchMaxBytes").asLong(), maxContentLengthBytes));
+            batchSr.addMapping(batchPath);
+        }
+
         ServletRegistration metricsSr = sc.addServlet("metrics", new MetricsServlet());
         metricsSr.addMapping("/metrics");
 
-        cleanupLeftoverRequests(basedir, qReg, lifecyclePolicy);
+        recoveryThread = new Thread(() -> recoverLeftoverRequests(storage, qReg, lifecyclePolicy), "qproxy_recovery");
+        recoveryThread.setDaemon(true);
+        recoveryThread.start();
+
+        final long queueIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.key("queueIdleTimeoutSeconds").asLong());
+        metricRegistry.register(name(QueueRegistry.class, "queues"), (Gauge<Integer>) qReg::size);
+        if (queueIdleTimeoutMillis > 0) {
+            queueEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "QueueRegistry_evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            final long checkIntervalMillis = Math.max(1000, queueIdleTimeoutMillis / 4);
+            queueEvictor.scheduleWithFixedDelay(() -> {
+                try {
+                    qReg.evictIdle(queueIdleTimeoutMillis);
+                } catch (RuntimeException e) {
+                    LOG.warn("failed to evict idle queues", e);
+                }
+            }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static int orDefault(final int value, final int defaultValue) {
+        return value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * Routes are listed in "routes"; each has a comma-separated list of URL prefixes in route.NAME.prefix and/or a
+     * regular expression in route.NAME.regex, and optionally its own pathAggregationLevels, queueCapacity,
+     * posterThreadCount, maxInFlightPerQueue and weight settings, e.g. route.NAME.queueCapacity. A route without
+     * pathAggregationLevels puts all its requests on one queue.
+     */
+    private RoutingTable createRoutingTable(Config config, int pathAggregationLevels) {
+        final RoutingTable.Builder builder = RoutingTable.builder(
+                new RoutingTable.Route("default", false, pathAggregationLevels, 0, 0, 0));
+
+        final ConfigValue routes = config.key("routes");
+        if (!routes.exists()) {
+            return builder.build();
+        }
+        for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(routes.asString())) {
+            final String prefix = "route." + name + ".";
+            final ConfigValue levels = config.key(prefix + "pathAggregationLevels");
+            final RoutingTable.Route route = new RoutingTable.Route(name, !levels.exists(),
+                    levels.exists() ? (int) levels.asLong() : 0, routeSetting(config, prefix + "queueCapacity"),
+                    routeSetting(config, prefix + "posterThreadCount"),
+                    routeSetting(config, prefix + "maxInFlightPerQueue"), routeSetting(config, prefix + "weight"));
+
+            boolean matched = false;
+            if (config.key(prefix + "prefix").exists()) {
+                for (String urlPrefix : Splitter.on(',').trimResults().omitEmptyStrings()
+                        .split(config.key(prefix + "prefix").asString())) {
+                    builder.prefix(urlPrefix, route);
+                    matched = true;
+                }
+            }
+            if (config.key(prefix + "regex").exists()) {
+                builder.regex(config.key(prefix + "regex").asString(), route);
+                matched = true;
+            }
+            if (!matched) {
+                throw new IllegalStateException("route " + name + " has neither prefix nor regex");
+            }
+            LOG.info("configured {}", route);
+        }
+        return builder.build();
+    }
+
+    private static int routeSetting(Config config, String key) {
+        final ConfigValue value = config.key(key);
+        return value.exists() ? (int) value.asLong() : 0;
+    }
+
+    private LifecyclePolicy createLifecyclePolicy(Config config) {
+        final int maxRetries = (int) config.key("maxRetries").asLong();
+        final int retryDelayBaseSeconds = (int) config.key("retryDelayBaseSeconds").asLong();
+        final int maxRequestAgeSeconds = (int) config.key("maxRequestAgeSeconds").asLong();
+        final String retryJitter = config.key("retryJitter").asString();
+        if ("none".equals(retryJitter)) {
+            return new DefaultLifecyclePolicy(maxRetries, retryDelayBaseSeconds, maxRequestAgeSeconds);
+        }
+        final LifecyclePolicy policy = new BackoffLifecyclePolicy(maxRetries, retryDelayBaseSeconds,
+                maxRequestAgeSeconds, (int) config.key("retryDelayMaxSeconds").asLong(),
+                BackoffLifecyclePolicy.Jitter.fromConfig(retryJitter));
+        LOG.info("configured {}", policy);
+        return policy;
+    }
+
+    private RequestStorage createStorage(Config config, List<Path> basedirs, MetricRegistry metricRegistry) {
+        final RequestStorage diskStorage;
+        if (basedirs.size() == 1) {
+            diskStorage = createDiskStorage(config, basedirs.get(0), 0);
+        } else {
+            final List<RequestStorage> stripes = new ArrayList<>();
+            for (int i = 0; i < basedirs.size(); i++) {
+                stripes.add(createDiskStorage(config, basedirs.get(i), i));
+            }
+            diskStorage = new StripedStorage(stripes, basedirs,
+                    StripedStorage.Mode.fromConfig(config.key("stripeMode").asString()), metricRegistry);
+        }
+
+        final long memoryBudgetBytes = config.key("memoryTierBudgetBytes").asLong();
+        if (memoryBudgetBytes <= 0) {
+            return diskStorage;
+        }
+        if (Durability.fromConfig(config.key("durability").asString()) != Durability.NONE) {
+            LOG.warn("memory tier disabled, requests must go to disk with the configured durability");
+            return diskStorage;
+        }
+        return new TieredStorage(diskStorage, metricRegistry, (int) Math.min(memoryBudgetBytes, Integer.MAX_VALUE),
+                (int) config.key("memoryTierMaxBodyBytes").asLong());
+    }
+
+    private RequestStorage createDiskStorage(Config config, Path basedir, int stripe) {
+        final Durability durability = Durability.fromConfig(config.key("durability").asString());
+        GroupCommit groupCommit = null;
+        if (durability == Durability.BATCHED) {
+            groupCommit = new GroupCommit("RequestStorage_groupCommit_" + stripe,
+                    config.key("groupCommitWindowMillis").asLong(), config.key("groupCommitBytes").asLong());
+            groupCommits.add(groupCommit);
+        }
+
+        final String storageType = config.key("storageType").asString();
+        switch (storageType) {
+            case "file":
+                return new FileStorage(basedir, durability, groupCommit);
+            case "segmented":
+                return new SegmentedStorage(basedir, config.key("segmentSizeBytes").asLong(), durability, groupCommit);
+            default:
+                throw new IllegalStateException("unknown storageType " + storageType);
+        }
+    }
+
+    private List<Path> getBasedirs(Config config) {
+        final List<Path> basedirs = new ArrayList<>();
+
+        ConfigValue pathsProperty = config.key("dataDirectories");
+        if (pathsProperty.exists()) {
+            for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(pathsProperty.asString())) {
+                basedirs.add(createBasedir(FileSystems.getDefault().getPath(path)));
+            }
+        }
+        if (basedirs.isEmpty()) {
+            basedirs.add(getBasedir(config));
+        }
+        return basedirs;
     }
 
     private Path getBasedir(Config config) {
@@ -82,6 +382,10 @@ public class Setup implements ServletContextListener {
         final Path basedir = pathProperty.exists() ?
                 FileSystems.getDefault().getPath(pathProperty.asString()) :
                 FileSystems.getDefault().getPath(DEFAULT_DATA_ROOT).resolve("qproxy-queues");
+        return createBasedir(basedir);
+    }
+
+    private Path createBasedir(Path basedir) {
         try {
             if (!Files.exists(basedir)) {
                 Files.createDirectory(basedir);
@@ -92,28 +396,84 @@ public class Setup implements ServletContextListener {
         }
     }
 
-    private void cleanupLeftoverRequests(Path basedir, QueueRegistry qReg, LifecyclePolicy lifecyclePolicy) {
-        final RequestStorage fs = new FileStorage(basedir);
+    /**
+     * A directory for incoming bodies next to the stored requests, so that it lives on the same disk rather than in
+     * java.io.tmpdir. Spool files left by a previous run are deleted.
+     */
+    private Path createSpoolDir(Path basedir) {
+        final Path spoolDir = createBasedir(basedir.resolve("spool"));
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir, BodySpool.FILE_PREFIX + "*")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        } catch (IOException e) {
+            LOG.warn("unable to clean up spool directory {}", spoolDir, e);
+        }
+        return spoolDir;
+    }
 
-        final List<Request> leftovers = fs.retrieve();
-        for (final Request req : leftovers) {
+    private void recoverLeftoverRequests(RequestStorage fs, QueueRegistry qReg, LifecyclePolicy lifecyclePolicy) {
+        final long start = System.nanoTime();
+        int adopted = 0;
+        int skipped = 0;
+        int forgotten = 0;
+        try (Stream<Request> leftovers = fs.recover()) {
+            final Iterator<Request> it = leftovers.iterator();
+            while (it.hasNext()) {
+                final Request req = it.next();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
 
-            if (!lifecyclePolicy.shouldForget(req)) {
-                LOG.info("processing leftover request {}", req);
-                RequestQueue q = qReg.getQueue(req.getUri());
-                try {
-                    q.enqueue(req);
-                } catch (RequestQueue.RequestQueueException e) {
-                    LOG.warn("unable to enqueue leftover request {}; skipping", req, e);
+                if (!lifecyclePolicy.shouldForget(req)) {
+                    LOG.debug("processing leftover request {}", req);
+                    try {
+                        if (qReg.adopt(req, RECOVERY_ENQUEUE_WAIT_MILLIS)) {
+                            adopted++;
+                        } else {
+                            LOG.warn("queue full; leaving leftover request {} for the next start", req);
+                            skipped++;
+                        }
+                    } catch (RequestQueue.RequestQueueException e) {
+                        LOG.warn("unable to enqueue leftover request {}; skipping", req, e);
+                        skipped++;
+                    }
+                } else {
+                    LOG.debug("skipping and deleting leftover request {}", req);
+                    fs.delete(req.getId());
+                    forgotten++;
                 }
-            } else {
-                LOG.info("skipping and deleting leftover request {}", req);
-                fs.delete(req.getId());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            LOG.info("recovery finished after {} ms: {} leftover requests enqueued, {} skipped, {} discarded",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), adopted, skipped, forgotten);
         }
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        if (recoveryThread != null) {
+            recoveryThread.interrupt();
+        }
+        if (queueEvictor != null) {
+            queueEvictor.shutdownNow();
+        }
+        if (sharedScheduler != null) {
+            sharedScheduler.stop();
+        }
+        if (directDelivery != null) {
+            directDelivery.stop();
+        }
+        if (sharedClient != null) {
+            sharedClient.stop();
+        }
+        if (delayTimer != null) {
+            delayTimer.stop();
+        }
+        for (GroupCommit groupCommit : groupCommits) {
+            groupCommit.stop();
+        }
     }
 }
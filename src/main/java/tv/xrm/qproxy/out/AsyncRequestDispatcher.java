@@ -0,0 +1,239 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.RequestDispatcher;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes items from a RequestQueue and delivers them asynchronously, keeping at most maxInFlight requests outstanding.
+ * A single thread per queue takes requests; completion, retries and cleanup happen in response callbacks.
+ */
+public final class AsyncRequestDispatcher implements RequestDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncRequestDispatcher.class);
+
+    private final HttpClient client;
+
+    private final boolean ownClient;
+
+    private final com.codahale.metrics.Timer requestTimer;
+
+    private final RequestQueue q;
+
+    private final LifecyclePolicy lifecyclePolicy;
+
+    private final ConcurrencyLimit limit;
+
+    private final CircuitBreaker breaker;
+
+    private final int maxLoggedResponseBytes;
+
+    private final int timeoutMillis;
+
+    private final long mmapThresholdBytes;
+
+    private final MetricRegistry metricRegistry;
+
+    private ExecutorService service;
+
+    public AsyncRequestDispatcher(final RequestQueue queue, final MetricRegistry metricRegistry,
+            final LifecyclePolicy lifecyclePolicy, final int maxInFlight, final int maxLoggedResponseBytes,
+            final int timeoutMillis, final long mmapThresholdBytes, final SharedHttpClient sharedClient) {
+        this(queue, metricRegistry, lifecyclePolicy, maxLoggedResponseBytes, timeoutMillis, mmapThresholdBytes,
+                sharedClient, ConcurrencyLimit.fixed(maxInFlight), CircuitBreaker.disabled());
+    }
+
+    /**
+     * @param limit   how many requests may be in flight at the same time
+     * @param breaker stops taking requests while the target is down
+     */
+    public AsyncRequestDispatcher(final RequestQueue queue, final MetricRegistry metricRegistry,
+            final LifecyclePolicy lifecyclePolicy, final int maxLoggedResponseBytes, final int timeoutMillis,
+            final long mmapThresholdBytes, final SharedHttpClient sharedClient, final ConcurrencyLimit limit,
+            final CircuitBreaker breaker) {
+        this.ownClient = sharedClient == null;
+        this.client = ownClient ? new HttpClient() : sharedClient.getClient();
+        this.q = Objects.requireNonNull(queue);
+        this.lifecyclePolicy = lifecyclePolicy;
+        this.limit = Objects.requireNonNull(limit);
+        this.breaker = Objects.requireNonNull(breaker);
+        this.maxLoggedResponseBytes = maxLoggedResponseBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.mmapThresholdBytes = mmapThresholdBytes;
+        this.metricRegistry = metricRegistry;
+
+        requestTimer = metricRegistry
+                .timer(MetricRegistry.name(AsyncRequestDispatcher.class, queue.getQueueId(), "outgoing-requests"));
+        metricRegistry.register(MetricRegistry.name(AsyncRequestDispatcher.class, queue.getQueueId(), "in-flight"),
+                (Gauge<Integer>) limit::getInFlight);
+        metricRegistry.register(
+                MetricRegistry.name(AsyncRequestDispatcher.class, queue.getQueueId(), "concurrency-limit"),
+                (Gauge<Integer>) limit::getLimit);
+        breaker.registerMetrics(metricRegistry, MetricRegistry.name(AsyncRequestDispatcher.class, queue.getQueueId()));
+    }
+
+    @Override
+    public void start() {
+        LOG.debug("async dispatcher starting up for queue {} with {}", q, limit);
+
+        if (ownClient) {
+            try {
+                client.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("failed to start HTTP client", e);
+            }
+        }
+
+        service = Executors.newSingleThreadExecutor();
+        service.submit(new Feeder());
+    }
+
+    @Override
+    public void stop() {
+        LOG.debug("async dispatcher shutting down for queue {}", q);
+
+        if (service != null) {
+            service.shutdownNow();
+            // the feeder gives back the permits it holds once interrupted; requests in flight give back theirs when
+            // they complete, or are aborted with the client
+            try {
+                if (!service.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("feeder of queue {} did not stop within {} ms", q, timeoutMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ownClient) {
+            Dispatching.stopClient(client);
+        }
+        metricRegistry.remove(MetricRegistry.name(AsyncRequestDispatcher.class, q.getQueueId(), "outgoing-requests"));
+        metricRegistry.remove(MetricRegistry.name(AsyncRequestDispatcher.class, q.getQueueId(), "in-flight"));
+        metricRegistry.remove(MetricRegistry.name(AsyncRequestDispatcher.class, q.getQueueId(), "concurrency-limit"));
+        breaker.removeMetrics(metricRegistry, MetricRegistry.name(AsyncRequestDispatcher.class, q.getQueueId()));
+    }
+
+    class Feeder implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    limit.acquire();
+                    final long permission;
+                    try {
+                        permission = breaker.awaitPermission();
+                    } catch (InterruptedException e) {
+                        limit.release();
+                        throw e;
+                    }
+
+                    tv.xrm.qproxy.Request req;
+                    try {
+                        req = q.take();
+                    } catch (RequestQueue.RequestQueueException e) {
+                        LOG.warn("failed to read a request object, skipping", e);
+                        breaker.cancel(permission);
+                        limit.release();
+                        continue;
+                    } catch (InterruptedException e) {
+                        breaker.cancel(permission);
+                        limit.release();
+                        throw e;
+                    }
+
+                    LOG.debug("retrieved {}", req);
+                    send(req, permission);
+                }
+            } catch (InterruptedException ignored) {
+                // just return, but set interrupted status (app probably shutting down)
+                Thread.currentThread().interrupt();
+            } finally {
+                LOG.info("Async request dispatcher of qproxy stopped");
+            }
+        }
+    }
+
+    private void send(final tv.xrm.qproxy.Request req, final long permission) {
+        final long start = System.nanoTime();
+        final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
+        final ReadableByteChannel ch = req.getBodyStream();
+
+        final Request newRequest;
+        try {
+            newRequest = Dispatching.newUpstreamRequest(client, req, ch, mmapThresholdBytes)
+                    .timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("exception trying to dispatch " + req, e);
+            complete(req, permission, ch, timerContext, start, true, LifecyclePolicy.NO_RESPONSE, -1);
+            return;
+        }
+
+        try {
+            newRequest.send(new DiscardingResponseListener(maxLoggedResponseBytes) {
+                @Override
+                public void onComplete(final Result result) {
+                    super.onComplete(result);
+                    boolean retry = true;
+                    int status = LifecyclePolicy.NO_RESPONSE;
+                    try {
+                        if (result.isFailed()) {
+                            LOG.warn("exception trying to dispatch " + req, result.getFailure());
+                        } else {
+                            status = result.getResponse().getStatus();
+                            retry = Dispatching.shouldRetry(lifecyclePolicy, req, status, getContentPrefix());
+                        }
+                    } catch (RuntimeException e) {
+                        // the permits must be given back whatever happens here
+                        LOG.warn("exception handling the response to " + req, e);
+                    }
+                    complete(req, permission, ch, timerContext, start, retry, status, getRetryAfterMillis());
+                }
+            });
+        } catch (RuntimeException e) {
+            // refused before anything was sent, e.g. for an unsupported scheme; the listener is not called
+            LOG.warn("exception trying to dispatch " + req, e);
+            complete(req, permission, ch, timerContext, start, true, LifecyclePolicy.NO_RESPONSE, -1);
+        }
+    }
+
+    private void complete(final tv.xrm.qproxy.Request req, final long permission, final ReadableByteChannel ch,
+            final com.codahale.metrics.Timer.Context timerContext, final long start, final boolean retry,
+            final int status, final long retryAfterMillis) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            LOG.debug("failed to close body of {}", req, e);
+        }
+        timerContext.stop();
+
+        try {
+            if (retry) {
+                Dispatching.retryOrGiveUp(q, lifecyclePolicy, req, status, retryAfterMillis);
+            } else {
+                LOG.debug("dispatched {}", req);
+                q.cleanup(req.getId());
+            }
+        } finally {
+            limit.release(System.nanoTime() - start, retry);
+            breaker.onResult(permission, !retry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "{" + q + "}";
+    }
+}
@@ -0,0 +1,105 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Delivers a request taken from a queue on the calling thread, waiting for the response, then cleans it up or
+ * schedules a retry.
+ */
+final class BlockingDelivery {
+    private static final Logger LOG = LoggerFactory.getLogger(BlockingDelivery.class);
+
+    private final HttpClient client;
+
+    private final RequestQueue q;
+
+    private final LifecyclePolicy lifecyclePolicy;
+
+    private final com.codahale.metrics.Timer requestTimer;
+
+    private final int maxLoggedResponseBytes;
+
+    private final int timeoutMillis;
+
+    private final long mmapThresholdBytes;
+
+    BlockingDelivery(final HttpClient client, final RequestQueue q, final LifecyclePolicy lifecyclePolicy,
+            final com.codahale.metrics.Timer requestTimer, final int maxLoggedResponseBytes, final int timeoutMillis,
+            final long mmapThresholdBytes) {
+        this.client = client;
+        this.q = q;
+        this.lifecyclePolicy = lifecyclePolicy;
+        this.requestTimer = requestTimer;
+        this.maxLoggedResponseBytes = maxLoggedResponseBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.mmapThresholdBytes = mmapThresholdBytes;
+    }
+
+    /**
+     * @return true if the request is done with, false if its delivery failed and it has been scheduled for a retry or
+     * given up on
+     */
+    boolean deliver(final tv.xrm.qproxy.Request req) throws InterruptedException {
+        try {
+            LOG.debug("retrieved {}", req);
+            postRequest(req);
+            LOG.debug("dispatched {}", req);
+            q.cleanup(req.getId());
+            return true;
+        } catch (RetryableResponseException e) {
+            LOG.warn("exception trying to dispatch " + req, e);
+            Dispatching.retryOrGiveUp(q, lifecyclePolicy, req, e.status, e.retryAfterMillis);
+            return false;
+        } catch (IOException e) {
+            LOG.warn("exception trying to dispatch " + req, e);
+            Dispatching.retryOrGiveUp(q, lifecyclePolicy, req);
+            return false;
+        }
+    }
+
+    private void postRequest(final tv.xrm.qproxy.Request req) throws IOException, InterruptedException {
+        final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
+
+        try (ReadableByteChannel ch = req.getBodyStream()) {
+            final Request newRequest = Dispatching.newUpstreamRequest(client, req, ch, mmapThresholdBytes);
+
+            try {
+                DiscardingResponseListener listener = new DiscardingResponseListener(maxLoggedResponseBytes);
+                newRequest.send(listener);
+                int status = listener.await(newRequest, timeoutMillis);
+
+                if (Dispatching.shouldRetry(lifecyclePolicy, req, status, listener.getContentPrefix())) {
+                    throw new RetryableResponseException(status, listener.getRetryAfterMillis());
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IOException(e);
+            }
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    /**
+     * The target answered, but with a status that calls for a retry.
+     */
+    private static final class RetryableResponseException extends IOException {
+        private final int status;
+        private final long retryAfterMillis;
+
+        RetryableResponseException(final int status, final long retryAfterMillis) {
+            super("service unavailable, retry later");
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops a dispatcher from taking requests off its queue while the target is down. After failureThreshold deliveries
+ * in a row have failed, the circuit opens: nothing is taken for openMillis. Then it is half open, and a single request
+ * is let through as a probe; if that succeeds the circuit closes again, otherwise it stays open for another period.
+ * <p>
+ * Every change of state starts a new generation, and a permission only counts in the generation it was given in: a
+ * result that arrives late, from a request let through before the circuit opened, does not count as that of the
+ * probe, nor towards the failures of a circuit that has closed since.
+ */
+public final class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private State state = State.CLOSED;
+    private long generation;
+    private int consecutiveFailures;
+    private long openUntilNanos;
+    private boolean probing;
+
+    private Meter opened;
+    private Meter halfOpened;
+    private Meter closed;
+
+    /**
+     * @param name             the queue the circuit belongs to, for logging
+     * @param failureThreshold number of failed deliveries in a row that open the circuit; 0 never opens it
+     */
+    public CircuitBreaker(final String name, final int failureThreshold, final long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public static CircuitBreaker disabled() {
+        return new CircuitBreaker("disabled", 0, 0);
+    }
+
+    /**
+     * Publish the state as a gauge (0 closed, 1 open, 2 half open) and the transitions into each state as meters.
+     */
+    void registerMetrics(final MetricRegistry metricRegistry, final String prefix) {
+        if (failureThreshold == 0) {
+            return;
+        }
+        opened = metricRegistry.meter(MetricRegistry.name(prefix, "circuit-opened"));
+        halfOpened = metricRegistry.meter(MetricRegistry.name(prefix, "circuit-half-opened"));
+        closed = metricRegistry.meter(MetricRegistry.name(prefix, "circuit-closed"));
+        metricRegistry.register(MetricRegistry.name(prefix, "circuit-state"),
+                (Gauge<Integer>) () -> getState().ordinal());
+    }
+
+    void removeMetrics(final MetricRegistry metricRegistry, final String prefix) {
+        metricRegistry.remove(MetricRegistry.name(prefix, "circuit-opened"));
+        metricRegistry.remove(MetricRegistry.name(prefix, "circuit-half-opened"));
+        metricRegistry.remove(MetricRegistry.name(prefix, "circuit-closed"));
+        metricRegistry.remove(MetricRegistry.name(prefix, "circuit-state"));
+    }
+
+    /**
+     * Wait until a request may be taken and delivered: right away while closed, once the open period is over, and
+     * while half open only for the one caller that gets to send the probe. A caller that is let through must report
+     * the outcome with {@link #onResult(long, boolean)}, or {@link #cancel(long)} if it did not deliver anything after
+     * all.
+     *
+     * @return the permission, to be passed back with the outcome
+     */
+    long awaitPermission() throws InterruptedException {
+        if (failureThreshold == 0) {
+            return 0;
+        }
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                switch (state) {
+                    case CLOSED:
+                        return generation;
+                    case OPEN:
+                        final long wait = openUntilNanos - System.nanoTime();
+                        if (wait <= 0) {
+                            transition(State.HALF_OPEN);
+                        } else {
+                            changed.awaitNanos(wait);
+                        }
+                        break;
+                    default:
+                        if (!probing) {
+                            probing = true;
+                            return generation;
+                        }
+                        changed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param permission as returned by {@link #awaitPermission()}
+     * @param delivered  false if the delivery failed in a way that calls for a retry
+     */
+    void onResult(final long permission, final boolean delivered) {
+        if (failureThreshold == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (permission != generation) {
+                // let through before the last change of state; says nothing about the target now
+                return;
+            }
+            if (delivered) {
+                consecutiveFailures = 0;
+                if (state != State.CLOSED) {
+                    transition(State.CLOSED);
+                }
+            } else {
+                consecutiveFailures++;
+                if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+                    LOG.info("circuit of queue {} opens after {} failures in a row", name, consecutiveFailures);
+                    openUntilNanos = System.nanoTime() + openNanos;
+                    transition(State.OPEN);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back a permission that was not used for a delivery.
+     */
+    void cancel(final long permission) {
+        if (failureThreshold == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN && probing && permission == generation) {
+                probing = false;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void transition(final State to) {
+        LOG.info("circuit of queue {}: {} -> {}", name, state, to);
+        state = to;
+        generation++;
+        probing = false;
+        final Meter meter = to == State.OPEN ? opened : to == State.HALF_OPEN ? halfOpened : closed;
+        if (meter != null) {
+            meter.mark();
+        }
+        changed.signalAll();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{" +
+                "name='" + name + '\'' +
+                ", state=" + getState() +
+                ", failureThreshold=" + failureThreshold +
+                '}';
+    }
+}
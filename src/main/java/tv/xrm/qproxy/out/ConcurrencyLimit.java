@@ -0,0 +1,122 @@
+package tv.xrm.qproxy.out;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit on the number of requests in flight to one queue's target. A fixed limit never changes. An adaptive limit
+ * follows how the target copes (AIMD): it grows by one with every request that completes quickly while at least half
+ * of the limit is in use, and shrinks by a constant factor with every request that fails, calls for a retry or takes
+ * longer than the latency threshold.
+ */
+public final class ConcurrencyLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int min;
+    private final int max;
+    private final long latencyThresholdNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+
+    private ConcurrencyLimit(final int initial, final int min, final int max, final long latencyThresholdNanos) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("need 1 <= min <= max, got " + min + " and " + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    public static ConcurrencyLimit fixed(final int limit) {
+        return new ConcurrencyLimit(limit, limit, limit, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param latencyThresholdMillis requests taking longer than this count as a sign of overload
+     */
+    public static ConcurrencyLimit adaptive(final int min, final int max, final long latencyThresholdMillis) {
+        return new ConcurrencyLimit(min, min, max, TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis));
+    }
+
+    /**
+     * Wait until another request may be sent.
+     */
+    void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the slot of a request that has completed, adjusting the limit accordingly.
+     *
+     * @param overloaded whether the request failed in a way that suggests the target is struggling
+     */
+    void release(final long latencyNanos, final boolean overloaded) {
+        lock.lock();
+        try {
+            final boolean used = inFlight * 2 >= limit;
+            inFlight--;
+            if (overloaded || latencyNanos > latencyThresholdNanos) {
+                limit = Math.max(min, limit * BACKOFF_RATIO);
+            } else if (used) {
+                limit = Math.min(max, limit + 1);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the slot of a request that was never sent, without adjusting the limit.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimit{" +
+                "limit=" + getLimit() +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -1,22 +1,14 @@
 package tv.xrm.qproxy.out;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.base.Joiner;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.api.ContentProvider;
-import org.eclipse.jetty.client.api.ContentResponse;
-import org.eclipse.jetty.client.api.Request;
-import org.eclipse.jetty.client.util.FutureResponseListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tv.xrm.qproxy.LifecyclePolicy;
 import tv.xrm.qproxy.RequestDispatcher;
 import tv.xrm.qproxy.RequestQueue;
 
-import java.io.IOException;
-import java.nio.channels.ReadableByteChannel;
-import java.util.Collection;
-import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
 
@@ -26,81 +18,126 @@ import java.util.concurrent.*;
 public final class DefaultRequestDispatcher implements RequestDispatcher {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultRequestDispatcher.class);
 
-    private static final Joiner COMMA_JOINER = Joiner.on(',');
+    private final HttpClient client;
 
-    private final HttpClient client = new HttpClient();
-
-    private final com.codahale.metrics.Timer requestTimer;
+    private final boolean ownClient;
 
     private final RequestQueue q;
 
-    private final LifecyclePolicy lifecyclePolicy;
+    private final BlockingDelivery delivery;
 
     private final int threadCount;
 
-    private final int maxContentLengthBytes;
+    private final ConcurrencyLimit limit;
+
+    private final CircuitBreaker breaker;
 
-    private final int timeoutMillis;
+    private final MetricRegistry metricRegistry;
+
+    private ExecutorService service;
 
     public DefaultRequestDispatcher(final RequestQueue queue, final MetricRegistry metricRegistry,
-            final LifecyclePolicy lifecyclePolicy, final int threadCount, final int maxContentLengthBytes,
-            final int timeoutMillis) {
+            final LifecyclePolicy lifecyclePolicy, final int threadCount, final int maxLoggedResponseBytes,
+            final int timeoutMillis, final long mmapThresholdBytes, final SharedHttpClient sharedClient) {
+        this(queue, metricRegistry, lifecyclePolicy, threadCount, maxLoggedResponseBytes, timeoutMillis,
+                mmapThresholdBytes, sharedClient, ConcurrencyLimit.fixed(threadCount), CircuitBreaker.disabled());
+    }
+
+    /**
+     * @param limit   how many of the threads may deliver at the same time
+     * @param breaker stops the threads from taking requests while the target is down
+     */
+    public DefaultRequestDispatcher(final RequestQueue queue, final MetricRegistry metricRegistry,
+            final LifecyclePolicy lifecyclePolicy, final int threadCount, final int maxLoggedResponseBytes,
+            final int timeoutMillis, final long mmapThresholdBytes, final SharedHttpClient sharedClient,
+            final ConcurrencyLimit limit, final CircuitBreaker breaker) {
+        this.ownClient = sharedClient == null;
+        this.client = ownClient ? new HttpClient() : sharedClient.getClient();
         this.q = Objects.requireNonNull(queue);
-        this.lifecyclePolicy = lifecyclePolicy;
         this.threadCount = threadCount;
-        this.maxContentLengthBytes = maxContentLengthBytes;
-        this.timeoutMillis = timeoutMillis;
+        this.limit = Objects.requireNonNull(limit);
+        this.breaker = Objects.requireNonNull(breaker);
+        this.metricRegistry = metricRegistry;
 
-        requestTimer = metricRegistry
+        final com.codahale.metrics.Timer requestTimer = metricRegistry
                 .timer(MetricRegistry.name(DefaultRequestDispatcher.class, queue.getQueueId(), "outgoing-requests"));
+        this.delivery = new BlockingDelivery(client, queue, lifecyclePolicy, requestTimer, maxLoggedResponseBytes,
+                timeoutMillis, mmapThresholdBytes);
+        metricRegistry.register(MetricRegistry.name(DefaultRequestDispatcher.class, queue.getQueueId(),
+                "concurrency-limit"), (Gauge<Integer>) limit::getLimit);
+        breaker.registerMetrics(metricRegistry, MetricRegistry.name(DefaultRequestDispatcher.class,
+                queue.getQueueId()));
     }
 
     @Override
     public void start() {
         LOG.debug("dispatcher starting up for queue {}", q);
 
-        try {
-            client.start();
-        } catch (Exception e) {
-            throw new IllegalStateException("failed to start HTTP client", e);
+        if (ownClient) {
+            try {
+                client.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("failed to start HTTP client", e);
+            }
         }
 
-        ExecutorService service = Executors.newFixedThreadPool(threadCount);
+        service = Executors.newFixedThreadPool(threadCount);
         for (int i = 0; i < threadCount; i++) {
             service.submit(new Dispatcher());
         }
     }
 
+    @Override
+    public void stop() {
+        LOG.debug("dispatcher shutting down for queue {}", q);
+
+        if (service != null) {
+            service.shutdownNow();
+        }
+        if (ownClient) {
+            Dispatching.stopClient(client);
+        }
+        metricRegistry.remove(MetricRegistry.name(DefaultRequestDispatcher.class, q.getQueueId(), "outgoing-requests"));
+        metricRegistry.remove(MetricRegistry.name(DefaultRequestDispatcher.class, q.getQueueId(), "concurrency-limit"));
+        breaker.removeMetrics(metricRegistry, MetricRegistry.name(DefaultRequestDispatcher.class, q.getQueueId()));
+    }
+
     class Dispatcher implements Runnable {
         @Override
         public void run() {
 
             try {
                 while (!Thread.currentThread().isInterrupted()) {
+                    limit.acquire();
+                    final long permission;
+                    try {
+                        permission = breaker.awaitPermission();
+                    } catch (InterruptedException e) {
+                        limit.release();
+                        throw e;
+                    }
                     tv.xrm.qproxy.Request req;
 
                     try {
                         req = q.take();
                     } catch (RequestQueue.RequestQueueException e) {
                         LOG.warn("failed to read a request object, skipping", e);
+                        breaker.cancel(permission);
+                        limit.release();
                         continue;
+                    } catch (InterruptedException e) {
+                        breaker.cancel(permission);
+                        limit.release();
+                        throw e;
                     }
 
+                    final long start = System.nanoTime();
+                    boolean done = false;
                     try {
-                        LOG.debug("retrieved {}", req);
-                        postRequest(req);
-                        LOG.debug("dispatched {}", req);
-                        q.cleanup(req.getId());
-                    } catch (IOException e) {
-                        LOG.warn("exception trying to dispatch " + req, e);
-
-                        long retry = lifecyclePolicy.shouldRetryIn(req);
-                        if (retry >= 0) {
-                            q.requeue(tv.xrm.qproxy.Request.withRetries(req, req.getRetryCount() + 1), retry);
-                        } else {
-                            LOG.warn("giving up on request {}", req);
-                            q.cleanup(req.getId());
-                        }
+                        done = delivery.deliver(req);
+                    } finally {
+                        limit.release(System.nanoTime() - start, !done);
+                        breaker.onResult(permission, done);
                     }
                 }
             } catch (InterruptedException ignored) {
@@ -110,43 +147,6 @@ public final class DefaultRequestDispatcher implements RequestDispatcher {
                 LOG.info("Request dispatcher of qproxy stopped");
             }
         }
-
-        private void postRequest(final tv.xrm.qproxy.Request req) throws IOException, InterruptedException {
-            final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
-
-            try (ReadableByteChannel ch = req.getBodyStream()) {
-                final ContentProvider contentProvider = new FixedSizeChannelProvider(ch);
-
-                Request newRequest = client.POST(req.getUri()).content(contentProvider);
-
-                // map headers into jetty request (concatenating multi headers)
-                for (Map.Entry<String, Collection<String>> header : req.getHeaders().entrySet()) {
-                    newRequest = newRequest.header(header.getKey(), COMMA_JOINER.join(header.getValue()));
-                }
-
-                try {
-                    FutureResponseListener listener = new FutureResponseListener(newRequest, maxContentLengthBytes);
-                    newRequest.send(listener);
-                    ContentResponse result = listener.get(timeoutMillis, TimeUnit.MILLISECONDS);
-                    final int status = result.getStatus();
-
-                    if (lifecyclePolicy.isSuccessfullyDelivered(status)) {
-                        LOG.debug("req: {} response: {}", req, status);
-                    } else {
-                        LOG.warn("req: {} response: {} body: '{}'", req, status, result.getContentAsString());
-                        if (lifecyclePolicy.shouldRetryOnStatus(status)) {
-                            throw new IOException("service unavailable, retry later");
-                        } else {
-                            LOG.warn("giving up on request {}", req);
-                        }
-                    }
-                } catch (ExecutionException | TimeoutException e) {
-                    throw new IOException(e);
-                }
-            } finally {
-                timerContext.stop();
-            }
-        }
     }
 
     @Override
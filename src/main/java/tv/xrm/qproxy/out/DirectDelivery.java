@@ -0,0 +1,209 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.Request;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Tries to deliver an incoming request right away instead of storing it first, so that a request to a healthy target
+ * costs one upstream round trip instead of a write, a hand-off and a re-read. Small bodies are sent from memory with a
+ * short timeout; large ones are streamed to the target while they arrive and are stored. Requests that are not done
+ * with are left to the caller to queue as usual. As with queued delivery, a request that timed out may still have
+ * reached the target, and will then arrive twice.
+ */
+public final class DirectDelivery {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectDelivery.class);
+
+    private final HttpClient client;
+
+    private final boolean ownClient;
+
+    private final LifecyclePolicy lifecyclePolicy;
+
+    private final int maxBodyBytes;
+
+    private final long minStreamedBodyBytes;
+
+    private final int timeoutMillis;
+
+    private final int maxLoggedResponseBytes;
+
+    private final com.codahale.metrics.Timer requestTimer;
+
+    private final Meter delivered;
+
+    private final Meter queued;
+
+    /**
+     * @param maxBodyBytes         requests with a body of at most this size are tried from memory; 0 for none
+     * @param minStreamedBodyBytes requests with a body of at least this size are streamed; 0 for none
+     */
+    public DirectDelivery(final MetricRegistry metricRegistry, final LifecyclePolicy lifecyclePolicy,
+            final int maxBodyBytes, final long minStreamedBodyBytes, final int timeoutMillis,
+            final int maxLoggedResponseBytes, final SharedHttpClient sharedClient) {
+        this.ownClient = sharedClient == null;
+        this.client = ownClient ? new HttpClient() : sharedClient.getClient();
+        this.lifecyclePolicy = lifecyclePolicy;
+        this.maxBodyBytes = maxBodyBytes;
+        this.minStreamedBodyBytes = minStreamedBodyBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.maxLoggedResponseBytes = maxLoggedResponseBytes;
+
+        requestTimer = metricRegistry.timer(name(DirectDelivery.class, "outgoing-requests"));
+        delivered = metricRegistry.meter(name(DirectDelivery.class, "delivered"));
+        queued = metricRegistry.meter(name(DirectDelivery.class, "queued"));
+    }
+
+    public void start() {
+        if (ownClient) {
+            try {
+                client.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("failed to start HTTP client", e);
+            }
+        }
+    }
+
+    public void stop() {
+        if (ownClient) {
+            Dispatching.stopClient(client);
+        }
+    }
+
+    /**
+     * Longest a single delivery attempt may take before it is given up.
+     */
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Whether a body of this size should be delivered from memory.
+     *
+     * @param contentLength size of the body; -1 if unknown, which is never small enough
+     */
+    public boolean accepts(final long contentLength) {
+        return contentLength >= 0 && contentLength <= maxBodyBytes;
+    }
+
+    /**
+     * Whether a body of this size should be streamed to the target while it arrives.
+     *
+     * @param contentLength announced size of the body; -1 if unknown, which is never large enough
+     */
+    public boolean streams(final long contentLength) {
+        return minStreamedBodyBytes > 0 && contentLength >= minStreamedBodyBytes;
+    }
+
+    /**
+     * Send the request with the given body, and report whether it is done with: true if it has been delivered or,
+     * according to the lifecycle policy, is not worth retrying; false if it should be queued. The callback is run on
+     * a thread of the HTTP client.
+     */
+    public void deliver(final Request req, final ByteBuffer body, final Consumer<Boolean> done) {
+        final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
+
+        final org.eclipse.jetty.client.api.Request upstream;
+        try {
+            upstream = Dispatching.newUpstreamRequest(client, req, new ByteBufferContentProvider(body))
+                    .timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            LOG.warn("exception trying to deliver " + req + " directly", e);
+            complete(timerContext, false, done);
+            return;
+        }
+        send(req, upstream, timerContext, done);
+    }
+
+    /**
+     * Start sending the request while its body is still arriving: everything read from the returned channel is passed
+     * on to the target as well. The request is only complete once the channel has been read to its end; if it is
+     * closed before, the upstream request is aborted. The timeout applies to the target being silent, not to the
+     * whole exchange. The outcome is reported as with {@link #deliver(Request, ByteBuffer, Consumer)}.
+     */
+    public ReadableByteChannel stream(final Request req, final ReadableByteChannel body,
+            final Consumer<Boolean> done) {
+        final com.codahale.metrics.Timer.Context timerContext = requestTimer.time();
+
+        final DeferredContentProvider content = new DeferredContentProvider();
+        final org.eclipse.jetty.client.api.Request upstream = Dispatching.newUpstreamRequest(client, req, content)
+                .idleTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        send(req, upstream, timerContext, done);
+        return new TeeChannel(body, content, upstream);
+    }
+
+    private void send(final Request req, final org.eclipse.jetty.client.api.Request upstream,
+            final com.codahale.metrics.Timer.Context timerContext, final Consumer<Boolean> done) {
+        try {
+            upstream.send(new DiscardingResponseListener(maxLoggedResponseBytes) {
+                @Override
+                public void onComplete(final Result result) {
+                    super.onComplete(result);
+                    boolean handled = false;
+                    try {
+                        if (result.isFailed()) {
+                            LOG.info("failed to deliver {} directly, queueing it: {}", req,
+                                    result.getFailure().toString());
+                        } else {
+                            handled = !Dispatching.shouldRetry(lifecyclePolicy, req,
+                                    result.getResponse().getStatus(), getContentPrefix());
+                        }
+                    } catch (RuntimeException e) {
+                        // the caller waits for an outcome whatever happens here
+                        LOG.warn("exception handling the response to " + req + ", queueing it", e);
+                    }
+                    complete(timerContext, handled, done);
+                }
+            });
+        } catch (RuntimeException e) {
+            // refused before anything was sent, e.g. for an unsupported scheme; the listener is not called
+            LOG.warn("exception trying to deliver " + req + " directly", e);
+            complete(timerContext, false, done);
+        }
+    }
+
+    /**
+     * Like {@link #deliver(Request, ByteBuffer, Consumer)}, but waiting for the outcome.
+     */
+    public boolean deliver(final Request req, final ByteBuffer body) throws InterruptedException {
+        final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        deliver(req, body, outcome::complete);
+        try {
+            return outcome.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private void complete(final com.codahale.metrics.Timer.Context timerContext, final boolean handled,
+            final Consumer<Boolean> done) {
+        timerContext.stop();
+        (handled ? delivered : queued).mark();
+        done.accept(handled);
+    }
+
+    @Override
+    public String toString() {
+        return "DirectDelivery{" +
+                "maxBodyBytes=" + maxBodyBytes +
+                ", minStreamedBodyBytes=" + minStreamedBodyBytes +
+                ", timeoutMillis=" + timeoutMillis +
+                '}';
+    }
+}
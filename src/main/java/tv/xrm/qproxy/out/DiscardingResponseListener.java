@@ -0,0 +1,113 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Response listener that keeps only the status, the Retry-After header and the first few bytes of the response body
+ * (for logging) and drops the rest of the body as it arrives. Subclasses may override {@link #onComplete(Result)} for
+ * callback style use, but must call the super method.
+ */
+class DiscardingResponseListener extends Response.Listener.Adapter {
+    private final byte[] prefix;
+    private int prefixLength;
+
+    private volatile String retryAfter;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Result result;
+
+    DiscardingResponseListener(final int maxPrefixBytes) {
+        this.prefix = new byte[Math.max(0, maxPrefixBytes)];
+    }
+
+    @Override
+    public void onHeaders(final Response response) {
+        retryAfter = response.getHeaders().get(HttpHeader.RETRY_AFTER);
+    }
+
+    @Override
+    public void onContent(final Response response, final ByteBuffer content) {
+        final int n = Math.min(content.remaining(), prefix.length - prefixLength);
+        if (n > 0) {
+            content.get(prefix, prefixLength, n);
+            prefixLength += n;
+        }
+        // anything not copied is dropped; the buffer goes back to the client's pool when we return
+    }
+
+    @Override
+    public void onComplete(final Result result) {
+        this.result = result;
+        done.countDown();
+    }
+
+    /**
+     * Wait for the response, aborting the request if it does not complete in time.
+     *
+     * @return the status of the response
+     */
+    int await(final Request request, final long timeoutMillis)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            final TimeoutException e = new TimeoutException("no response within " + timeoutMillis + " ms");
+            request.abort(e);
+            throw e;
+        }
+        final Result r = result;
+        if (r.isFailed()) {
+            throw new ExecutionException(r.getFailure());
+        }
+        return r.getResponse().getStatus();
+    }
+
+    /**
+     * The beginning of the response body, decoded as UTF-8 (possibly cut off in the middle of a character).
+     */
+    String getContentPrefix() {
+        return new String(prefix, 0, prefixLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The delay asked for by the Retry-After header of the response, in milliseconds; -1 if there was none.
+     */
+    long getRetryAfterMillis() {
+        return retryAfterMillis(retryAfter, System.currentTimeMillis());
+    }
+
+    /**
+     * Parse a Retry-After value, either delta-seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds (0 for a date in the past), or -1 if the value is missing or invalid
+     */
+    static long retryAfterMillis(final String value, final long nowMillis) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        final String trimmed = value.trim();
+        try {
+            final long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException e) {
+            try {
+                final long at = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+                        .toEpochMilli();
+                return Math.max(0, at - nowMillis);
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package tv.xrm.qproxy.out;
+
+import com.google.common.base.Joiner;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.api.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Functionality shared by the dispatcher implementations.
+ */
+final class Dispatching {
+    private static final Logger LOG = LoggerFactory.getLogger(Dispatching.class);
+
+    private static final Joiner COMMA_JOINER = Joiner.on(',');
+
+    private Dispatching() {
+    }
+
+    /**
+     * Create the outgoing POST for a stored request, streaming its body from the given channel.
+     */
+    static Request newUpstreamRequest(final HttpClient client, final tv.xrm.qproxy.Request req,
+            final ReadableByteChannel body, final long mmapThresholdBytes) throws IOException {
+        return newUpstreamRequest(client, req, contentProviderFor(client, body, mmapThresholdBytes));
+    }
+
+    /**
+     * Create the outgoing POST for a request, with the given content instead of the request's body.
+     */
+    static Request newUpstreamRequest(final HttpClient client, final tv.xrm.qproxy.Request req,
+            final ContentProvider content) {
+        Request newRequest = client.POST(req.getUri()).content(content);
+
+        // map headers into jetty request (concatenating multi headers)
+        for (Map.Entry<String, Collection<String>> header : req.getHeaders().entrySet()) {
+            newRequest = newRequest.header(header.getKey(), COMMA_JOINER.join(header.getValue()));
+        }
+        return newRequest;
+    }
+
+    private static ContentProvider contentProviderFor(final HttpClient client, final ReadableByteChannel ch,
+            final long mmapThresholdBytes) throws IOException {
+        if (ch instanceof FileChannel) {
+            return new FileChannelContentProvider((FileChannel) ch, client.getByteBufferPool(), mmapThresholdBytes);
+        } else {
+            return new FixedSizeChannelProvider(ch);
+        }
+    }
+
+    /**
+     * Log the response and decide whether it calls for a retry.
+     *
+     * @return true if the request should be retried, false if it is done with (delivered or given up on)
+     */
+    static boolean shouldRetry(final LifecyclePolicy lifecyclePolicy, final tv.xrm.qproxy.Request req,
+            final int status, final String body) {
+        if (lifecyclePolicy.isSuccessfullyDelivered(status)) {
+            LOG.debug("req: {} response: {}", req, status);
+            return false;
+        }
+
+        LOG.warn("req: {} response: {} body: '{}'", req, status, body);
+        if (lifecyclePolicy.shouldRetryOnStatus(status)) {
+            return true;
+        } else {
+            LOG.warn("giving up on request {}", req);
+            return false;
+        }
+    }
+
+    /**
+     * Requeue a request whose delivery failed, or clean it up if the lifecycle policy says so.
+     */
+    static void retryOrGiveUp(final RequestQueue q, final LifecyclePolicy lifecyclePolicy,
+            final tv.xrm.qproxy.Request req) {
+        retryOrGiveUp(q, lifecyclePolicy, req, LifecyclePolicy.NO_RESPONSE, -1);
+    }
+
+    /**
+     * Like {@link #retryOrGiveUp(RequestQueue, LifecyclePolicy, tv.xrm.qproxy.Request)}, passing on what the target
+     * answered.
+     */
+    static void retryOrGiveUp(final RequestQueue q, final LifecyclePolicy lifecyclePolicy,
+            final tv.xrm.qproxy.Request req, final int status, final long retryAfterMillis) {
+        long retry = lifecyclePolicy.shouldRetryIn(req, status, retryAfterMillis);
+        if (retry >= 0) {
+            q.requeue(tv.xrm.qproxy.Request.withRetries(req, req.getRetryCount() + 1), retry);
+        } else {
+            LOG.warn("giving up on request {}", req);
+            q.cleanup(req.getId());
+        }
+    }
+
+    static void stopClient(final HttpClient client) {
+        try {
+            client.stop();
+        } catch (Exception e) {
+            LOG.warn("failed to stop HTTP client", e);
+        }
+    }
+}
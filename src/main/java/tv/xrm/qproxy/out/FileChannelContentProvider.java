@@ -0,0 +1,127 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Provides the remainder of a FileChannel (from its current position) as request content, without copying it through
+ * heap arrays. Small bodies are read positionally into a pooled direct buffer, bodies of at least mmapThresholdBytes
+ * are memory-mapped.
+ */
+final class FileChannelContentProvider implements ContentProvider {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBufferPool bufferPool;
+    private final long start;
+    private final long contentLength;
+    private final long mmapThresholdBytes;
+
+    public FileChannelContentProvider(final FileChannel channel, final ByteBufferPool bufferPool,
+            final long mmapThresholdBytes) throws IOException {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.start = channel.position();
+        this.contentLength = Math.max(0, channel.size() - start);
+        this.mmapThresholdBytes = mmapThresholdBytes;
+    }
+
+    @Override
+    public long getLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean isReproducible() {
+        return true;
+    }
+
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        if (contentLength >= mmapThresholdBytes) {
+            return new MappedIterator();
+        } else {
+            return new PooledBufferIterator();
+        }
+    }
+
+    private final class MappedIterator implements Iterator<ByteBuffer> {
+        private boolean consumed;
+
+        @Override
+        public boolean hasNext() {
+            return !consumed;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (consumed) {
+                throw new NoSuchElementException();
+            }
+            consumed = true;
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, start, contentLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Reuses a single pooled direct buffer; Jetty only asks for the next chunk after the previous one was written.
+     */
+    private final class PooledBufferIterator implements Iterator<ByteBuffer>, Closeable {
+        private long position = start;
+        private ByteBuffer buffer;
+
+        @Override
+        public boolean hasNext() {
+            return position < start + contentLength;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (buffer == null) {
+                buffer = bufferPool.acquire((int) Math.min(BUFFER_SIZE, contentLength), true);
+            }
+
+            buffer.clear();
+            final long remaining = start + contentLength - position;
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    final int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("unexpected end of channel at " + position);
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One pool of poster threads serving all queues. Non-empty queues take turns in deficit round robin order: on its
+ * turn a queue may hand out up to weight * quantum requests before it goes to the back of the line. A queue never has
+ * more than maxInFlightPerQueue requests in delivery, so a slow target cannot tie up the whole pool. Empty queues are
+ * not looked at and cost no threads.
+ */
+public final class SharedDispatchScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedDispatchScheduler.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+
+    /**
+     * Queues that (may) have work, in round robin order. Guarded by lock.
+     */
+    private final ArrayDeque<Member> active = new ArrayDeque<>();
+
+    private final int threadCount;
+    private final int quantum;
+    private final int maxInFlightPerQueue;
+
+    private ExecutorService service;
+
+    public SharedDispatchScheduler(final MetricRegistry metricRegistry, final int threadCount, final int quantum,
+            final int maxInFlightPerQueue) {
+        this.threadCount = threadCount;
+        this.quantum = quantum;
+        this.maxInFlightPerQueue = maxInFlightPerQueue;
+
+        metricRegistry.register(MetricRegistry.name(SharedDispatchScheduler.class, "active-queues"),
+                (Gauge<Integer>) this::getActiveQueueCount);
+    }
+
+    public synchronized void start() {
+        if (service != null) {
+            return;
+        }
+        LOG.debug("shared dispatcher starting up with {} threads", threadCount);
+        service = Executors.newFixedThreadPool(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            service.submit(new Worker());
+        }
+    }
+
+    public synchronized void stop() {
+        if (service != null) {
+            service.shutdownNow();
+            service = null;
+        }
+    }
+
+    /**
+     * Start serving a queue.
+     */
+    void register(final RequestQueue queue, final BlockingDelivery delivery, final int weight) {
+        final Member member = new Member(queue, delivery, Math.max(1, weight) * quantum);
+        queue.setAvailabilityListener(() -> activate(member));
+        activate(member);
+    }
+
+    /**
+     * Stop serving a queue. Requests of the queue already handed to a worker are still delivered.
+     */
+    void unregister(final RequestQueue queue) {
+        queue.setAvailabilityListener(null);
+        lock.lock();
+        try {
+            final Iterator<Member> it = active.iterator();
+            while (it.hasNext()) {
+                final Member member = it.next();
+                if (member.queue == queue) {
+                    member.active = false;
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getActiveQueueCount() {
+        lock.lock();
+        try {
+            return active.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void activate(final Member member) {
+        lock.lock();
+        try {
+            if (!member.active) {
+                member.active = true;
+                member.deficit = 0;
+                active.addLast(member);
+            }
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next queue to take a request from, charging it one unit of its deficit.
+     */
+    private Member next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                final Iterator<Member> it = active.iterator();
+                while (it.hasNext()) {
+                    final Member member = it.next();
+                    if (member.inFlight >= maxInFlightPerQueue) {
+                        continue;
+                    }
+                    if (member.deficit <= 0) {
+                        member.deficit += member.quantum;
+                    }
+                    member.deficit--;
+                    member.inFlight++;
+                    if (member.deficit <= 0) {
+                        it.remove();
+                        active.addLast(member);
+                    }
+                    return member;
+                }
+                workAvailable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called after a poll of the member's queue, with the request obtained (if any) already dealt with.
+     */
+    private void done(final Member member, final boolean wasEmpty) {
+        lock.lock();
+        try {
+            member.inFlight--;
+            if (wasEmpty && member.active && member.queue.isEmpty()) {
+                member.active = false;
+                active.remove(member);
+            }
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final Member member = next();
+
+                    boolean wasEmpty = false;
+                    try {
+                        final tv.xrm.qproxy.Request req = member.queue.poll();
+                        if (req == null) {
+                            wasEmpty = true;
+                        } else {
+                            member.delivery.deliver(req);
+                        }
+                    } catch (RequestQueue.RequestQueueException e) {
+                        LOG.warn("failed to read a request object, skipping", e);
+                    } finally {
+                        done(member, wasEmpty);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                // just return, but set interrupted status (app probably shutting down)
+                Thread.currentThread().interrupt();
+            } finally {
+                LOG.info("Shared request dispatcher thread of qproxy stopped");
+            }
+        }
+    }
+
+    private static final class Member {
+        final RequestQueue queue;
+        final BlockingDelivery delivery;
+        final int quantum;
+
+        // all guarded by the scheduler's lock
+        boolean active;
+        int deficit;
+        int inFlight;
+
+        Member(RequestQueue queue, BlockingDelivery delivery, int quantum) {
+            this.queue = queue;
+            this.delivery = delivery;
+            this.quantum = quantum;
+        }
+    }
+}
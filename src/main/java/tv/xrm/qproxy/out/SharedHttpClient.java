@@ -0,0 +1,146 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.eclipse.jetty.client.AbstractConnectionPool;
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.Origin;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpHeaderValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * One HttpClient used by the dispatchers of all queues, so that they share selector threads, executor and buffer pool
+ * instead of each starting their own. Connection pool usage of every destination is published as gauges; destinations
+ * that have gone idle are dropped together with their gauges.
+ */
+public final class SharedHttpClient {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedHttpClient.class);
+
+    private final HttpClient client;
+
+    private final MetricRegistry metricRegistry;
+
+    public SharedHttpClient(final MetricRegistry metricRegistry, final int selectors,
+            final int maxConnectionsPerDestination, final long idleTimeoutMillis, final boolean keepAlive) {
+        this.metricRegistry = metricRegistry;
+
+        this.client = new HttpClient(new HttpClientTransportOverHTTP(selectors) {
+            @Override
+            public HttpDestination newHttpDestination(final Origin origin) {
+                final HttpDestination destination = super.newHttpDestination(origin);
+                registerGauges(destination);
+                return destination;
+            }
+        }, null) {
+            @Override
+            protected boolean removeDestination(final HttpDestination destination) {
+                final boolean removed = super.removeDestination(destination);
+                if (removed) {
+                    removeGauges(destination);
+                }
+                return removed;
+            }
+        };
+        client.setName("qproxy-shared-client");
+        client.setMaxConnectionsPerDestination(maxConnectionsPerDestination);
+        client.setIdleTimeout(idleTimeoutMillis);
+        client.setRemoveIdleDestinations(true);
+
+        if (!keepAlive) {
+            client.getRequestListeners().add(new Request.Listener.Adapter() {
+                @Override
+                public void onQueued(final Request request) {
+                    request.header(HttpHeader.CONNECTION, HttpHeaderValue.CLOSE.asString());
+                }
+            });
+        }
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    public void start() {
+        try {
+            client.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("failed to start shared HTTP client", e);
+        }
+    }
+
+    public void stop() {
+        Dispatching.stopClient(client);
+    }
+
+    /*
+     * HttpClient may create a destination and then discard it when it loses a race with another thread, so gauges
+     * are registered by name and look up the live destination of that name whenever they are read.
+     */
+    private synchronized void registerGauges(final HttpDestination destination) {
+        final String name = destinationName(destination);
+        if (metricRegistry.getNames().contains(MetricRegistry.name(SharedHttpClient.class, name, "queued-requests"))) {
+            return;
+        }
+        LOG.debug("new destination {}", name);
+
+        registerPoolGauge(name, "active-connections", DuplexConnectionPool.class,
+                DuplexConnectionPool::getActiveConnectionCount);
+        registerPoolGauge(name, "idle-connections", DuplexConnectionPool.class,
+                DuplexConnectionPool::getIdleConnectionCount);
+        registerPoolGauge(name, "pending-connections", AbstractConnectionPool.class,
+                AbstractConnectionPool::getPendingCount);
+        metricRegistry.register(MetricRegistry.name(SharedHttpClient.class, name, "queued-requests"),
+                (Gauge<Integer>) () -> {
+                    final HttpDestination live = findDestination(name);
+                    return live != null ? live.getHttpExchanges().size() : 0;
+                });
+    }
+
+    /*
+     * Which counts a pool keeps depends on its implementation; gauges of pools that lack the count read 0.
+     */
+    private <P extends ConnectionPool> void registerPoolGauge(final String name, final String metric,
+            final Class<P> poolType, final ToIntFunction<P> value) {
+        metricRegistry.register(MetricRegistry.name(SharedHttpClient.class, name, metric), (Gauge<Integer>) () -> {
+            final HttpDestination live = findDestination(name);
+            final ConnectionPool pool = live != null ? live.getConnectionPool() : null;
+            return poolType.isInstance(pool) ? value.applyAsInt(poolType.cast(pool)) : 0;
+        });
+    }
+
+    private synchronized void removeGauges(final HttpDestination destination) {
+        final String name = destinationName(destination);
+        if (findDestination(name) != null) {
+            return;
+        }
+        LOG.debug("removing idle destination {}", name);
+
+        metricRegistry.remove(MetricRegistry.name(SharedHttpClient.class, name, "active-connections"));
+        metricRegistry.remove(MetricRegistry.name(SharedHttpClient.class, name, "idle-connections"));
+        metricRegistry.remove(MetricRegistry.name(SharedHttpClient.class, name, "pending-connections"));
+        metricRegistry.remove(MetricRegistry.name(SharedHttpClient.class, name, "queued-requests"));
+    }
+
+    private HttpDestination findDestination(final String name) {
+        for (Destination destination : client.getDestinations()) {
+            if (destination instanceof HttpDestination && name.equals(destinationName(destination))) {
+                return (HttpDestination) destination;
+            }
+        }
+        return null;
+    }
+
+    private static String destinationName(final Destination destination) {
+        return destination.getScheme() + "://" + destination.getHost() + ":" + destination.getPort();
+    }
+}
@@ -0,0 +1,82 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.MetricRegistry;
+import org.eclipse.jetty.client.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.RequestDispatcher;
+import tv.xrm.qproxy.RequestQueue;
+
+import java.util.Objects;
+
+/**
+ * Delivers items from a RequestQueue using the threads of a {@link SharedDispatchScheduler} instead of threads of
+ * its own.
+ */
+public final class SharedPoolRequestDispatcher implements RequestDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedPoolRequestDispatcher.class);
+
+    private final HttpClient client;
+
+    private final boolean ownClient;
+
+    private final RequestQueue q;
+
+    private final SharedDispatchScheduler scheduler;
+
+    private final BlockingDelivery delivery;
+
+    private final int weight;
+
+    private final MetricRegistry metricRegistry;
+
+    public SharedPoolRequestDispatcher(final RequestQueue queue, final SharedDispatchScheduler scheduler,
+            final MetricRegistry metricRegistry, final LifecyclePolicy lifecyclePolicy, final int weight,
+            final int maxLoggedResponseBytes, final int timeoutMillis, final long mmapThresholdBytes,
+            final SharedHttpClient sharedClient) {
+        this.ownClient = sharedClient == null;
+        this.client = ownClient ? new HttpClient() : sharedClient.getClient();
+        this.q = Objects.requireNonNull(queue);
+        this.scheduler = Objects.requireNonNull(scheduler);
+        this.weight = weight;
+        this.metricRegistry = metricRegistry;
+
+        final com.codahale.metrics.Timer requestTimer = metricRegistry
+                .timer(MetricRegistry.name(SharedPoolRequestDispatcher.class, queue.getQueueId(), "outgoing-requests"));
+        this.delivery = new BlockingDelivery(client, queue, lifecyclePolicy, requestTimer, maxLoggedResponseBytes,
+                timeoutMillis, mmapThresholdBytes);
+    }
+
+    @Override
+    public void start() {
+        LOG.debug("shared pool dispatcher starting up for queue {}", q);
+
+        if (ownClient) {
+            try {
+                client.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("failed to start HTTP client", e);
+            }
+        }
+
+        scheduler.register(q, delivery, weight);
+    }
+
+    @Override
+    public void stop() {
+        LOG.debug("shared pool dispatcher shutting down for queue {}", q);
+
+        scheduler.unregister(q);
+        if (ownClient) {
+            Dispatching.stopClient(client);
+        }
+        metricRegistry
+                .remove(MetricRegistry.name(SharedPoolRequestDispatcher.class, q.getQueueId(), "outgoing-requests"));
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "{" + q + "}";
+    }
+}
@@ -0,0 +1,67 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Passes on everything read from a body to the content of an upstream request as well. The upstream request is
+ * completed when the body has been read to its end, and aborted if reading it fails or stops early, so that the
+ * target never sees a truncated body as a complete one.
+ */
+final class TeeChannel implements ReadableByteChannel {
+    private final ReadableByteChannel delegate;
+    private final DeferredContentProvider content;
+    private final Request upstream;
+
+    private boolean complete;
+
+    TeeChannel(final ReadableByteChannel delegate, final DeferredContentProvider content, final Request upstream) {
+        this.delegate = delegate;
+        this.content = content;
+        this.upstream = upstream;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        final int n;
+        try {
+            n = delegate.read(dst);
+        } catch (IOException e) {
+            upstream.abort(e);
+            throw e;
+        }
+
+        if (n > 0) {
+            // the caller reuses its buffer, so the upstream request gets a copy
+            final ByteBuffer read = dst.duplicate();
+            read.flip();
+            read.position(start);
+            final ByteBuffer copy = ByteBuffer.allocate(n);
+            copy.put(read);
+            copy.flip();
+            content.offer(copy);
+        } else if (n < 0 && !complete) {
+            complete = true;
+            content.close();
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!complete) {
+            upstream.abort(new IOException("request body not read to its end"));
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,250 @@
+package tv.xrm.qproxy.storage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link FileStorage.StorageBlock}.
+ * <p>
+ * Layout (version 1): magic byte, version byte, URI (string), received timestamp (varint), header count (varint),
+ * then per header a name code (varint; 0 means a literal name string follows, n &gt; 0 refers to dictionary entry
+ * n - 1), a value count (varint) and the values (strings). Strings are a varint byte length followed by UTF-8.
+ */
+final class BinaryStorageBlockCodec {
+
+    /**
+     * First byte of every binary storage block. Cannot be the first byte of a JSON document.
+     */
+    static final byte MAGIC = (byte) 0xB1;
+
+    static final byte VERSION = 1;
+
+    /**
+     * Header names that are encoded as a single byte. Append only - codes are persisted.
+     */
+    private static final String[] DICTIONARY = {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Cache-Control",
+            "Connection", "Content-Encoding", "Content-Type", "Cookie", "Date", "Expect", "Host", "If-Match",
+            "If-Modified-Since", "If-None-Match", "Origin", "Pragma", "Referer", "User-Agent", "Via",
+            "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Port", "X-Forwarded-Proto", "X-Real-IP",
+            "X-Request-ID", "X-Correlation-ID",
+            "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control",
+            "connection", "content-encoding", "content-type", "cookie", "date", "expect", "host", "if-match",
+            "if-modified-since", "if-none-match", "origin", "pragma", "referer", "user-agent", "via",
+            "x-forwarded-for", "x-forwarded-host", "x-forwarded-port", "x-forwarded-proto", "x-real-ip",
+            "x-request-id", "x-correlation-id"
+    };
+
+    private static final Map<String, Integer> CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            CODES.put(DICTIONARY[i], i + 1);
+        }
+    }
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(() -> new Output(1024));
+
+    private BinaryStorageBlockCodec() {
+    }
+
+    static byte[] encode(final FileStorage.StorageBlock stb) {
+        Output out = OUTPUT.get();
+        out.reset();
+
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeString(stb.getUri().toString());
+        out.writeVarint(stb.getReceivedTimestamp());
+
+        final Map<String, Collection<String>> headers =
+                stb.getHeaders() != null ? stb.getHeaders() : Collections.<String, Collection<String>>emptyMap();
+        out.writeVarint(headers.size());
+        for (Map.Entry<String, Collection<String>> header : headers.entrySet()) {
+            final Integer code = CODES.get(header.getKey());
+            if (code != null) {
+                out.writeVarint(code);
+            } else {
+                out.writeVarint(0);
+                out.writeString(header.getKey());
+            }
+
+            final Collection<String> values = header.getValue();
+            out.writeVarint(values.size());
+            for (String value : values) {
+                out.writeString(value);
+            }
+        }
+
+        final byte[] result = out.toByteArray();
+        if (out.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            OUTPUT.remove();
+        }
+        return result;
+    }
+
+    static FileStorage.StorageBlock decode(final byte[] bytes) throws IOException {
+        final Input in = new Input(bytes);
+
+        if (in.readByte() != MAGIC) {
+            throw new IOException("not a binary storage block");
+        }
+        final byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported storage block version " + version);
+        }
+
+        final URI uri;
+        try {
+            uri = new URI(in.readString());
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid URI in storage block", e);
+        }
+        final long receivedTimestamp = in.readVarint();
+
+        final int headerCount = in.readCount();
+        final Map<String, Collection<String>> headers = new LinkedHashMap<>(headerCount * 2);
+        for (int i = 0; i < headerCount; i++) {
+            // a code is no length, so it is not checked against the bytes left
+            final long code = in.readVarint();
+            final String name;
+            if (code == 0) {
+                name = in.readString();
+            } else if (code > 0 && code <= DICTIONARY.length) {
+                name = DICTIONARY[(int) code - 1];
+            } else {
+                throw new IOException("unknown header name code " + code);
+            }
+
+            final int valueCount = in.readCount();
+            final List<String> values = new ArrayList<>(valueCount);
+            for (int j = 0; j < valueCount; j++) {
+                values.add(in.readString());
+            }
+            headers.put(name, values);
+        }
+
+        return new FileStorage.StorageBlock(uri, headers, receivedTimestamp);
+    }
+
+    private static final class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void reset() {
+            pos = 0;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void writeByte(final byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeString(final String s) {
+            final int length = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+
+            if (ascii) {
+                writeVarint(length);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    buf[pos++] = (byte) s.charAt(i);
+                }
+            } else {
+                final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(final int additional) {
+            if (pos + additional > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + additional));
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= buf.length) {
+                throw new IOException("unexpected end of storage block");
+            }
+            return buf[pos++];
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint in storage block");
+        }
+
+        /**
+         * Reads a varint that is used as a count or length, i.e. must fit into the remaining bytes.
+         */
+        int readCount() throws IOException {
+            final long count = readVarint();
+            if (count < 0 || count > buf.length - pos) {
+                throw new IOException("invalid count " + count + " in storage block");
+            }
+            return (int) count;
+        }
+
+        String readString() throws IOException {
+            final int length = readCount();
+            final String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package tv.xrm.qproxy.storage;
+
+/**
+ * How hard storage tries to have a request on disk before store() returns.
+ */
+public enum Durability {
+    /**
+     * Leave it to the operating system when data are written out.
+     */
+    NONE,
+
+    /**
+     * Wait for a {@link GroupCommit}, which syncs the writes of many concurrent store() calls at once.
+     */
+    BATCHED,
+
+    /**
+     * Sync every request on its own.
+     */
+    PER_REQUEST;
+
+    public static Durability fromConfig(final String value) {
+        switch (value) {
+            case "none":
+                return NONE;
+            case "batched":
+                return BATCHED;
+            case "perRequest":
+                return PER_REQUEST;
+            default:
+                throw new IllegalStateException("unknown durability " + value);
+        }
+    }
+}
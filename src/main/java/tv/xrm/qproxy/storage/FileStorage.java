@@ -14,6 +14,9 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FileStorage implements RequestStorage {
 
@@ -22,6 +25,8 @@ public class FileStorage implements RequestStorage {
      */
     static final String SUFFIX = ".req";
 
+    private static final int RECOVERY_BATCH_SIZE = 1024;
+
     /**
      * Maximum serialized size of storage block (i.e. request metadata, not including body). This is a sanity check
      * to detect file corruption.
@@ -36,8 +41,30 @@ public class FileStorage implements RequestStorage {
 
     private final Path baseDir;
 
+    private final Durability durability;
+
+    private final GroupCommit groupCommit;
+
+    /**
+     * Requests found when the storage was opened, oldest first; only these are recovered, never ones stored since.
+     */
+    private final List<String> leftovers;
+
     public FileStorage(final Path baseDir) {
+        this(baseDir, Durability.NONE, null);
+    }
+
+    /**
+     * @param groupCommit required for {@link Durability#BATCHED}, ignored otherwise
+     */
+    public FileStorage(final Path baseDir, final Durability durability, final GroupCommit groupCommit) {
+        if (durability == Durability.BATCHED && groupCommit == null) {
+            throw new IllegalArgumentException("batched durability requires a group commit");
+        }
         this.baseDir = baseDir;
+        this.durability = durability;
+        this.groupCommit = groupCommit;
+        this.leftovers = listLeftovers();
     }
 
     @Override
@@ -50,6 +77,7 @@ public class FileStorage implements RequestStorage {
 
             writeStorageBlock(new StorageBlock(request.getUri(), request.getHeaders(), request.getReceivedTimestamp()), targetChannel);
             targetChannel.transferFrom(inChannel, targetChannel.position(), Integer.MAX_VALUE);
+            sync(targetChannel);
         } catch (IOException | RuntimeException e) {
             Files.delete(target);
             throw e;
@@ -58,6 +86,57 @@ public class FileStorage implements RequestStorage {
         return id;
     }
 
+    /**
+     * Writes all files first and then, unless durability is NONE, syncs them and the directory once for the whole
+     * batch, which is a group commit of its own.
+     */
+    @Override
+    public List<String> storeAll(final List<Request> requests) throws IOException {
+        final List<Path> targets = new ArrayList<>(requests.size());
+        try {
+            for (Request request : requests) {
+                final Path target = Files.createTempFile(baseDir, Long.toString(System.currentTimeMillis()), SUFFIX);
+                targets.add(target);
+                try (ReadableByteChannel inChannel = request.getBodyStream();
+                     FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    writeStorageBlock(new StorageBlock(request.getUri(), request.getHeaders(),
+                            request.getReceivedTimestamp()), targetChannel);
+                    targetChannel.transferFrom(inChannel, targetChannel.position(), Integer.MAX_VALUE);
+                }
+            }
+            if (durability != Durability.NONE) {
+                // files are synced after all of them have been written (and closed, to keep descriptor usage down)
+                for (Path target : targets) {
+                    try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                        channel.force(false);
+                    }
+                }
+                GroupCommit.syncDirectory(baseDir);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path target : targets) {
+                Files.deleteIfExists(target);
+            }
+            throw e;
+        }
+
+        return targets.stream().map(target -> target.getFileName().toString()).collect(Collectors.toList());
+    }
+
+    private void sync(final FileChannel targetChannel) throws IOException {
+        switch (durability) {
+            case BATCHED:
+                groupCommit.commit(targetChannel, baseDir, targetChannel.size());
+                break;
+            case PER_REQUEST:
+                targetChannel.force(false);
+                GroupCommit.syncDirectory(baseDir);
+                break;
+            default:
+                break;
+        }
+    }
+
     @Override
     public Request retrieve(final String id) throws IOException {
         final Path source = baseDir.resolve(Objects.requireNonNull(id));
@@ -78,25 +157,52 @@ public class FileStorage implements RequestStorage {
         }
     }
 
+    /**
+     * Files are read in batches, several at a time, in the order of their names. Names start with the time the
+     * request was stored, so batches come roughly oldest first, and each batch is sorted oldest first. Only the names
+     * of the files found when the storage was opened are held in memory.
+     */
     @Override
-    public List<Request> retrieve() {
-        final String glob = "*" + SUFFIX;
-        List<Request> result = new LinkedList<>();
+    public Stream<Request> recover() {
+        final List<Supplier<List<Request>>> chunks = new ArrayList<>();
+        for (int i = 0; i < leftovers.size(); i += RECOVERY_BATCH_SIZE) {
+            final List<String> batch = leftovers.subList(i, Math.min(leftovers.size(), i + RECOVERY_BATCH_SIZE));
+            chunks.add(() -> {
+                final List<Request> result = new ArrayList<>(batch.size());
+                for (String id : batch) {
+                    final Request req = recover(id);
+                    if (req != null) {
+                        result.add(req);
+                    }
+                }
+                return result;
+            });
+        }
+        return RecoveryStreams.prefetched(chunks, RecoveryStreams.WINDOW);
+    }
+
+    private List<String> listLeftovers() {
+        final List<String> ids = new ArrayList<>();
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, glob)) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, "*" + SUFFIX)) {
             for (Path file : stream) {
-                String id = file.getFileName().toString();
-                try {
-                    result.add(retrieve(id));
-                } catch (IOException e) {
-                    LOG.warn("unable to read file {}; skipping", id, e);
-                }
+                ids.add(file.getFileName().toString());
             }
         } catch (IOException e) {
             throw new IllegalStateException("unable to list directory " + baseDir);
         }
+        Collections.sort(ids);
+        return ids;
+    }
 
-        return result;
+    private Request recover(final String id) {
+        try (FileChannel sourceChannel = FileChannel.open(baseDir.resolve(id), StandardOpenOption.READ)) {
+            final StorageBlock stb = readStorageBlock(sourceChannel);
+            return new Request(stb.getUri(), Collections.emptyMap(), null, id, 0, stb.getReceivedTimestamp());
+        } catch (IOException e) {
+            LOG.warn("unable to read file {}; skipping", id, e);
+            return null;
+        }
     }
 
     @Override
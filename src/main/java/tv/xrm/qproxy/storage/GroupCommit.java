@@ -0,0 +1,181 @@
+package tv.xrm.qproxy.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Syncs the writes of concurrent store() calls in groups. Callers add the channel they wrote to (and optionally a
+ * directory whose entries changed) to the current group and wait. A single flusher thread closes a group once it
+ * is windowMillis old or holds maxBytes of writes, forces each distinct channel and directory in it once, and then
+ * releases the group's callers. A caller only ever waits for its own group.
+ */
+public final class GroupCommit {
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommit.class);
+
+    private final long windowNanos;
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * The group currently accepting writes. Guarded by lock.
+     */
+    private Group open = new Group();
+
+    private final Thread flusher;
+    private volatile boolean stopped;
+
+    private static final class Group {
+        final Set<FileChannel> channels = new LinkedHashSet<>();
+        final Set<Path> directories = new LinkedHashSet<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        long bytes;
+        long openedNanos;
+        volatile IOException failure;
+
+        boolean isEmpty() {
+            return channels.isEmpty() && directories.isEmpty();
+        }
+    }
+
+    public GroupCommit(final String name, final long windowMillis, final long maxBytes) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBytes = maxBytes;
+
+        this.flusher = new Thread(this::run, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Wait until the given channel (and directory, if not null) have been synced, along with whatever else joined
+     * the same group.
+     *
+     * @param bytes number of bytes the caller wrote, counted towards the group's size threshold
+     */
+    void commit(final FileChannel channel, final Path directory, final long bytes) throws IOException {
+        final Group group;
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new IOException("group commit has been stopped");
+            }
+            group = open;
+            if (group.isEmpty()) {
+                group.openedNanos = System.nanoTime();
+            }
+            if (channel != null) {
+                group.channels.add(channel);
+            }
+            if (directory != null) {
+                group.directories.add(directory);
+            }
+            group.bytes += bytes;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            group.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for group commit", e);
+        }
+        if (group.failure != null) {
+            throw new IOException("group commit failed", group.failure);
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        flusher.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (!stopped) {
+                flush(awaitGroup());
+            }
+        } catch (InterruptedException ignored) {
+            // just return, but set interrupted status (app probably shutting down)
+            Thread.currentThread().interrupt();
+        } finally {
+            failRemaining();
+            LOG.info("Group commit thread of qproxy stopped");
+        }
+    }
+
+    /**
+     * Wait until the open group is due, then close it and open a new one.
+     */
+    private Group awaitGroup() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (open.isEmpty()) {
+                    changed.await();
+                    continue;
+                }
+                final long remaining = open.openedNanos + windowNanos - System.nanoTime();
+                if (remaining <= 0 || open.bytes >= maxBytes) {
+                    final Group due = open;
+                    open = new Group();
+                    return due;
+                }
+                changed.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void flush(final Group group) {
+        try {
+            for (FileChannel channel : group.channels) {
+                channel.force(false);
+            }
+            for (Path directory : group.directories) {
+                syncDirectory(directory);
+            }
+        } catch (IOException e) {
+            group.failure = e;
+        } finally {
+            group.done.countDown();
+        }
+    }
+
+    private void failRemaining() {
+        lock.lock();
+        try {
+            open.failure = new IOException("group commit has been stopped");
+            open.done.countDown();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make changes to a directory's entries (created or renamed files) durable. Not supported on every platform;
+     * failures are logged and otherwise ignored.
+     */
+    static void syncDirectory(final Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("unable to sync directory {}", directory, e);
+        }
+    }
+}
@@ -1,31 +1,44 @@
 package tv.xrm.qproxy.storage;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
 
 import java.io.IOException;
 
+/**
+ * Writes storage blocks in the binary format of {@link BinaryStorageBlockCodec}. Reads both that and the JSON format
+ * of earlier versions, telling them apart by the first byte.
+ */
 final class Marshalling {
     private static final TypeReference<FileStorage.StorageBlock> TYPE_REFERENCE = new TypeReference<FileStorage.StorageBlock>() {
     };
 
-    private final ObjectWriter writer;
+    private static final byte JSON_OBJECT_START = '{';
+
     private final ObjectReader reader;
 
     public Marshalling() {
         ObjectMapper mapper = new ObjectMapper();
-        writer = mapper.writer();
         reader = mapper.readerFor(TYPE_REFERENCE);
     }
 
-    public byte[] marshal(final FileStorage.StorageBlock o) throws JsonProcessingException {
-        return writer.writeValueAsBytes(o);
+    public byte[] marshal(final FileStorage.StorageBlock o) {
+        return BinaryStorageBlockCodec.encode(o);
     }
 
-    public FileStorage.StorageBlock unmarshal(final byte[] jsonBytes) throws IOException {
-        return reader.readValue(jsonBytes);
+    public FileStorage.StorageBlock unmarshal(final byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("empty storage block");
+        }
+
+        switch (bytes[0]) {
+            case BinaryStorageBlockCodec.MAGIC:
+                return BinaryStorageBlockCodec.decode(bytes);
+            case JSON_OBJECT_START:
+                return reader.readValue(bytes);
+            default:
+                throw new IOException("unknown storage block format " + bytes[0]);
+        }
     }
-}
\ No newline at end of file
+}
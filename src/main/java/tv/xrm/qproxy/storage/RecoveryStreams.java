@@ -0,0 +1,125 @@
+package tv.xrm.qproxy.storage;
+
+import tv.xrm.qproxy.Request;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Building blocks for the lazy streams returned by {@link tv.xrm.qproxy.RequestStorage#recover()}.
+ */
+final class RecoveryStreams {
+    /**
+     * Number of chunks read ahead by default: enough to keep all cores busy parsing.
+     */
+    static final int WINDOW = Runtime.getRuntime().availableProcessors();
+
+    private static final Comparator<Request> OLDEST_FIRST = Comparator.comparingLong(Request::getReceivedTimestamp);
+
+    private RecoveryStreams() {
+    }
+
+    /**
+     * The requests of the given chunks, in chunk order, each chunk sorted oldest first. Up to window chunks are read
+     * ahead on the common pool while the stream is consumed, so only that many chunks are ever held in memory.
+     */
+    static Stream<Request> prefetched(final List<Supplier<List<Request>>> chunks, final int window) {
+        final Iterator<Supplier<List<Request>>> pending = chunks.iterator();
+        final Deque<CompletableFuture<List<Request>>> ahead = new ArrayDeque<>();
+
+        final Iterator<Request> requests = new Iterator<Request>() {
+            private Iterator<Request> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    while (ahead.size() < Math.max(1, window) && pending.hasNext()) {
+                        final Supplier<List<Request>> chunk = pending.next();
+                        ahead.add(CompletableFuture.supplyAsync(() -> {
+                            final List<Request> result = chunk.get();
+                            result.sort(OLDEST_FIRST);
+                            return result;
+                        }));
+                    }
+                    if (ahead.isEmpty()) {
+                        return false;
+                    }
+                    current = ahead.poll().join().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Request next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(requests, Spliterator.ORDERED), false)
+                .onClose(() -> ahead.forEach(f -> f.cancel(false)));
+    }
+
+    /**
+     * Merges streams that are each oldest first into one that is oldest first, reading each only as far as needed.
+     * Closing the result closes all of them.
+     */
+    static Stream<Request> merged(final List<Stream<Request>> streams) {
+        final List<Iterator<Request>> sources = streams.stream().map(Stream::iterator).collect(Collectors.toList());
+
+        final PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                (a, b) -> OLDEST_FIRST.compare(a.request, b.request));
+        for (Iterator<Request> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+
+        final Iterator<Request> requests = new Iterator<Request>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Request next() {
+                final Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                if (head.source.hasNext()) {
+                    heads.add(new Head(head.source.next(), head.source));
+                }
+                return head.request;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(requests, Spliterator.ORDERED), false)
+                .onClose(() -> streams.forEach(Stream::close));
+    }
+
+    private static final class Head {
+        final Request request;
+        final Iterator<Request> source;
+
+        Head(Request request, Iterator<Request> source) {
+            this.request = request;
+            this.source = source;
+        }
+    }
+}
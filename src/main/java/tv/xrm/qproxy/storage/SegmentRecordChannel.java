@@ -0,0 +1,170 @@
+package tv.xrm.qproxy.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only view of a record body within a segment file, presented as a FileChannel of its own so that it can be
+ * read positionally or mapped like a request file. Closing it does not close the underlying segment.
+ */
+final class SegmentRecordChannel extends FileChannel {
+    private final FileChannel segment;
+    private final long start;
+    private final long length;
+    private long position;
+
+    SegmentRecordChannel(final FileChannel segment, final long start, final long length) {
+        this.segment = segment;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final int read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        final long remaining = length - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        final int originalLimit = dst.limit();
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + (int) remaining);
+        }
+        try {
+            return segment.read(dst, start + position);
+        } finally {
+            dst.limit(originalLimit);
+        }
+    }
+
+    @Override
+    public long transferTo(final long position, final long count, final WritableByteChannel target)
+            throws IOException {
+        ensureOpen();
+        if (position >= length) {
+            return 0;
+        }
+        return segment.transferTo(start + position, Math.min(count, length - position), target);
+    }
+
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+        ensureOpen();
+        if (mode != MapMode.READ_ONLY) {
+            throw new NonWritableChannelException();
+        }
+        if (position < 0 || size < 0 || position + size > length) {
+            throw new IllegalArgumentException("region outside of record");
+        }
+        return segment.map(mode, start + position, size);
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public FileChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return length;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(final ByteBuffer src, final long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(final boolean metaData) {
+        // read-only, nothing to do
+    }
+
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException("segment records cannot be locked");
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException("segment records cannot be locked");
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        // the segment channel is shared and stays open
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen() || !segment.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package tv.xrm.qproxy.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestStorage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Storage that appends requests to large, pre-sized segment files instead of creating one file per request. IDs
+ * are of the form segment-offset. A segment file is deleted as a whole once all of its records have been deleted.
+ */
+public class SegmentedStorage implements RequestStorage {
+
+    /**
+     * File suffix used for segment files.
+     */
+    static final String SUFFIX = ".seg";
+
+    /**
+     * Record status: never written, or write not completed.
+     */
+    static final byte STATUS_FREE = 0;
+
+    /**
+     * Record status: stored and not yet deleted.
+     */
+    static final byte STATUS_LIVE = 1;
+
+    /**
+     * Record status: deleted, waiting for its segment to be reclaimed.
+     */
+    static final byte STATUS_DELETED = 2;
+
+    /**
+     * Record header: status byte, storage block length (int), body length (long).
+     */
+    static final int RECORD_HEADER_SIZE = 1 + 4 + 8;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedStorage.class);
+
+    private static final char ID_SEPARATOR = '-';
+
+    /**
+     * Scratch buffers are kept per thread for reuse, unless they had to grow beyond this size.
+     */
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+
+    private final Marshalling marshalling = new Marshalling();
+
+    private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<>();
+
+    private final Path baseDir;
+
+    private final long segmentSize;
+
+    private final Object appendLock = new Object();
+
+    private Segment current;
+
+    private long nextSequence;
+
+    /**
+     * Highest sequence of the segments left over when the storage was opened; only these are recovered.
+     */
+    private final long leftoverSequence;
+
+    private final Durability durability;
+
+    private final GroupCommit groupCommit;
+
+    public SegmentedStorage(final Path baseDir, final long segmentSize) {
+        this(baseDir, segmentSize, Durability.NONE, null);
+    }
+
+    /**
+     * @param groupCommit required for {@link Durability#BATCHED}, ignored otherwise
+     */
+    public SegmentedStorage(final Path baseDir, final long segmentSize, final Durability durability,
+            final GroupCommit groupCommit) {
+        if (durability == Durability.BATCHED && groupCommit == null) {
+            throw new IllegalArgumentException("batched durability requires a group commit");
+        }
+        this.baseDir = baseDir;
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+        this.groupCommit = groupCommit;
+        this.leftoverSequence = openExistingSegments();
+        this.nextSequence = leftoverSequence + 1;
+    }
+
+    @Override
+    public String store(final Request request) throws IOException {
+        final ByteBuffer record = serialize(request);
+        final int length = record.remaining();
+
+        final Segment segment;
+        final long offset;
+        synchronized (appendLock) {
+            if (current == null || current.remaining() < length) {
+                rollSegment(length);
+            }
+            segment = current;
+            offset = reserve(segment, Collections.singletonList(record), length);
+            segment.liveRecords.incrementAndGet();
+        }
+
+        try {
+            writeFully(segment.channel, record, offset);
+            writeStatus(segment.channel, offset, STATUS_LIVE);
+        } catch (IOException | RuntimeException e) {
+            release(segment);
+            throw e;
+        }
+
+        final String id = id(segment.sequence, offset);
+        try {
+            sync(segment, length);
+        } catch (IOException | RuntimeException e) {
+            delete(id);
+            throw e;
+        }
+
+        return id;
+    }
+
+    /**
+     * Appends all records with a single write and syncs them once.
+     */
+    @Override
+    public List<String> storeAll(final List<Request> requests) throws IOException {
+        if (requests.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ByteBuffer> records = new ArrayList<>(requests.size());
+        int total = 0;
+        for (Request request : requests) {
+            final ByteBuffer serialized = serialize(request);
+            final ByteBuffer record = ByteBuffer.allocate(serialized.remaining());
+            record.put(serialized);
+            record.flip();
+            records.add(record);
+            total += record.remaining();
+        }
+        final ByteBuffer batch = ByteBuffer.allocate(total);
+        records.forEach(batch::put);
+        batch.flip();
+
+        final Segment segment;
+        final long offset;
+        synchronized (appendLock) {
+            if (current == null || current.remaining() < total) {
+                rollSegment(total);
+            }
+            segment = current;
+            offset = reserve(segment, records, total);
+            segment.liveRecords.addAndGet(records.size());
+        }
+
+        final List<String> ids = new ArrayList<>(records.size());
+        try {
+            writeFully(segment.channel, batch, offset);
+            long recordOffset = offset;
+            for (ByteBuffer record : records) {
+                writeStatus(segment.channel, recordOffset, STATUS_LIVE);
+                ids.add(id(segment.sequence, recordOffset));
+                recordOffset += record.limit();
+            }
+        } catch (IOException | RuntimeException e) {
+            ids.forEach(this::delete);
+            for (int i = ids.size(); i < records.size(); i++) {
+                release(segment);
+            }
+            throw e;
+        }
+
+        try {
+            sync(segment, total);
+        } catch (IOException | RuntimeException e) {
+            ids.forEach(this::delete);
+            throw e;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Reserves space for the given records and writes their headers, still marked free but with their lengths, so
+     * that a scan after a crash steps over records whose contents were never written instead of stopping there and
+     * losing the records written after them. Must be called while holding the append lock.
+     *
+     * @param records serialized records, each from position 0 to its limit
+     * @return offset of the first record
+     */
+    private static long reserve(final Segment segment, final List<ByteBuffer> records, final int total)
+            throws IOException {
+        final long offset = segment.reserve(total);
+        try {
+            long recordOffset = offset;
+            for (ByteBuffer record : records) {
+                final ByteBuffer header = record.duplicate();
+                header.limit(RECORD_HEADER_SIZE);
+                header.position(0);
+                writeFully(segment.channel, header, recordOffset);
+                recordOffset += record.limit();
+            }
+        } catch (IOException | RuntimeException e) {
+            segment.unreserve(offset);
+            throw e;
+        }
+        return offset;
+    }
+
+    private void sync(final Segment segment, final int length) throws IOException {
+        switch (durability) {
+            case BATCHED:
+                groupCommit.commit(segment.channel, null, length);
+                break;
+            case PER_REQUEST:
+                segment.channel.force(false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public Request retrieve(final String id) throws IOException {
+        final long[] location = parseId(Objects.requireNonNull(id));
+        final Segment segment = location == null ? null : segments.get(location[0]);
+        if (segment == null) {
+            throw new IOException("no such record " + id);
+        }
+
+        final long offset = location[1];
+        final RecordHeader header = readHeader(segment, offset);
+        if (header == null || header.status != STATUS_LIVE) {
+            throw new IOException("no live record at " + id);
+        }
+
+        final FileStorage.StorageBlock stb = readStorageBlock(segment, offset, header.blockLength);
+        final long bodyOffset = offset + RECORD_HEADER_SIZE + header.blockLength;
+
+        LOG.debug("retrieved {} {}", id, stb.getUri());
+
+        return new Request(stb.getUri(), stb.getHeaders(),
+                new SegmentRecordChannel(segment.channel, bodyOffset, header.bodyLength), id, 0,
+                stb.getReceivedTimestamp());
+    }
+
+    /**
+     * Segments left over when the storage was opened are read in the order they were written, each sorted oldest
+     * first, and several of them at a time. Records stored since then are never recovered, they are queued already.
+     */
+    @Override
+    public Stream<Request> recover() {
+        final List<Segment> sorted = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment.sequence <= leftoverSequence) {
+                sorted.add(segment);
+            }
+        }
+        sorted.sort(Comparator.comparingLong(segment -> segment.sequence));
+
+        final List<Supplier<List<Request>>> chunks = new ArrayList<>(sorted.size());
+        for (Segment segment : sorted) {
+            chunks.add(() -> recover(segment));
+        }
+        return RecoveryStreams.prefetched(chunks, RecoveryStreams.WINDOW);
+    }
+
+    private List<Request> recover(final Segment segment) {
+        final List<Request> result = new ArrayList<>();
+
+        for (Long offset : liveOffsets(segment)) {
+            final String id = id(segment.sequence, offset);
+            try {
+                final RecordHeader header = readHeader(segment, offset);
+                final FileStorage.StorageBlock stb = readStorageBlock(segment, offset, header.blockLength);
+                result.add(new Request(stb.getUri(), Collections.emptyMap(), null, id, 0, stb.getReceivedTimestamp()));
+            } catch (IOException e) {
+                LOG.warn("unable to read record {}; skipping", id, e);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void delete(final String id) {
+        if (id == null) {
+            return;
+        }
+
+        final long[] location = parseId(id);
+        final Segment segment = location == null ? null : segments.get(location[0]);
+        if (segment == null) {
+            LOG.warn("unable to delete {}, no such segment", id);
+            return;
+        }
+
+        try {
+            synchronized (segment) {
+                final RecordHeader header = readHeader(segment, location[1]);
+                if (header == null || header.status != STATUS_LIVE) {
+                    LOG.warn("unable to delete {}, no live record", id);
+                    return;
+                }
+                writeStatus(segment.channel, location[1], STATUS_DELETED);
+            }
+            release(segment);
+        } catch (IOException e) {
+            LOG.warn("unable to delete {}", id, e);
+        }
+    }
+
+    private ByteBuffer serialize(final Request request) throws IOException {
+        final byte[] block;
+        try {
+            block = marshalling.marshal(new FileStorage.StorageBlock(request.getUri(), request.getHeaders(),
+                    request.getReceivedTimestamp()));
+        } catch (RuntimeException e) {
+            throw new IOException("failed writing storage block for " + request, e);
+        }
+
+        ByteBuffer buffer = SCRATCH.get();
+        buffer.clear();
+        buffer = ensureCapacity(buffer, RECORD_HEADER_SIZE + block.length);
+        buffer.position(RECORD_HEADER_SIZE);
+        buffer.put(block);
+
+        try (ReadableByteChannel in = request.getBodyStream()) {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer = ensureCapacity(buffer, buffer.capacity() * 2);
+                }
+                if (in.read(buffer) < 0) {
+                    break;
+                }
+            }
+        }
+
+        if (buffer.capacity() <= MAX_RETAINED_SCRATCH_SIZE) {
+            SCRATCH.set(buffer);
+        } else {
+            SCRATCH.remove();
+        }
+
+        final long bodyLength = buffer.position() - RECORD_HEADER_SIZE - block.length;
+        buffer.flip();
+        buffer.put(0, STATUS_FREE);
+        buffer.putInt(1, block.length);
+        buffer.putLong(5, bodyLength);
+        return buffer;
+    }
+
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * Must be called while holding the append lock.
+     */
+    private void rollSegment(final int minimumSize) throws IOException {
+        final Segment previous = current;
+        final long sequence = nextSequence++;
+        final Path path = baseDir.resolve(String.format("%020d%s", sequence, SUFFIX));
+        final long size = Math.max(segmentSize, minimumSize);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        current = new Segment(sequence, path,
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE), size, 0);
+        if (durability != Durability.NONE) {
+            // the file's size and its directory entry, so that later syncs of record data only need fdatasync
+            current.channel.force(true);
+            GroupCommit.syncDirectory(baseDir);
+        }
+        segments.put(sequence, current);
+        LOG.debug("rolled to new segment {}", path);
+
+        if (previous != null) {
+            previous.sealed = true;
+            reclaimIfUnused(previous);
+        }
+    }
+
+    private void release(final Segment segment) {
+        segment.liveRecords.decrementAndGet();
+        reclaimIfUnused(segment);
+    }
+
+    private void reclaimIfUnused(final Segment segment) {
+        if (segment.sealed && segment.liveRecords.get() == 0 && segments.remove(segment.sequence, segment)) {
+            LOG.debug("reclaiming segment {}", segment.path);
+            try {
+                segment.channel.close();
+                Files.delete(segment.path);
+            } catch (IOException e) {
+                LOG.warn("unable to reclaim segment {}", segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Opens all segments left over in the base directory; these are sealed, new records always go to a new segment.
+     *
+     * @return highest sequence number found, or zero
+     */
+    private long openExistingSegments() {
+        long maxSequence = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                final String name = file.getFileName().toString();
+                final long sequence;
+                try {
+                    sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    LOG.warn("unexpected segment file name {}; skipping", name);
+                    continue;
+                }
+                maxSequence = Math.max(maxSequence, sequence);
+
+                try {
+                    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    final Segment segment = new Segment(sequence, file, channel, channel.size(), channel.size());
+                    segment.sealed = true;
+                    segment.liveRecords.set(liveOffsets(segment).size());
+                    segments.put(sequence, segment);
+                    reclaimIfUnused(segment);
+                } catch (IOException e) {
+                    LOG.warn("unable to open segment {}; skipping", name, e);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to list directory " + baseDir);
+        }
+
+        return maxSequence;
+    }
+
+    /**
+     * Scans a segment from the start, stopping at the first unwritten or corrupt record.
+     */
+    private List<Long> liveOffsets(final Segment segment) {
+        final List<Long> result = new ArrayList<>();
+        long offset = 0;
+
+        try {
+            RecordHeader header;
+            while ((header = readHeader(segment, offset)) != null) {
+                if (header.status == STATUS_FREE && header.blockLength == 0 && header.bodyLength == 0) {
+                    break;
+                }
+                final long next = offset + RECORD_HEADER_SIZE + header.blockLength + header.bodyLength;
+                if (header.blockLength < 0 || header.blockLength > FileStorage.MAX_STORAGE_BLOCK_SIZE
+                        || header.bodyLength < 0 || next > segment.capacity) {
+                    LOG.warn("corrupt record at {} in {}; ignoring rest of segment", offset, segment.path);
+                    break;
+                }
+                if (header.status == STATUS_LIVE) {
+                    result.add(offset);
+                }
+                offset = next;
+            }
+        } catch (IOException e) {
+            LOG.warn("unable to scan segment {}", segment.path, e);
+        }
+
+        return result.isEmpty() ? Collections.emptyList() : result;
+    }
+
+    private static RecordHeader readHeader(final Segment segment, final long offset) throws IOException {
+        if (offset < 0 || offset + RECORD_HEADER_SIZE > segment.capacity) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(segment.channel, buffer, offset);
+        return new RecordHeader(buffer.get(0), buffer.getInt(1), buffer.getLong(5));
+    }
+
+    private FileStorage.StorageBlock readStorageBlock(final Segment segment, final long offset, final int length)
+            throws IOException {
+        if (length > FileStorage.MAX_STORAGE_BLOCK_SIZE) {
+            throw new IOException("storage block size is greater than " + FileStorage.MAX_STORAGE_BLOCK_SIZE + ", segment corrupt?");
+        }
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(segment.channel, buffer, offset + RECORD_HEADER_SIZE);
+            return marshalling.unmarshal(buffer.array());
+        } catch (RuntimeException e) {
+            throw new IOException("failed reading storage block", e);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("unexpected end of segment at " + pos);
+            }
+            pos += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+
+    private static void writeStatus(final FileChannel channel, final long offset, final byte status)
+            throws IOException {
+        writeFully(channel, ByteBuffer.wrap(new byte[]{status}), offset);
+    }
+
+    static String id(final long sequence, final long offset) {
+        return Long.toString(sequence) + ID_SEPARATOR + offset;
+    }
+
+    /**
+     * @return segment sequence and offset, or null if the ID is malformed
+     */
+    static long[] parseId(final String id) {
+        final int separator = id.indexOf(ID_SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(id.substring(0, separator)), Long.parseLong(id.substring(separator + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentedStorage{" +
+                "baseDir=" + baseDir +
+                ", segmentSize=" + segmentSize +
+                '}';
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path path;
+        final FileChannel channel;
+        final long capacity;
+        final AtomicInteger liveRecords = new AtomicInteger();
+        volatile boolean sealed;
+
+        /**
+         * Guarded by the append lock.
+         */
+        private long writePosition;
+
+        Segment(long sequence, Path path, FileChannel channel, long capacity, long writePosition) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.capacity = capacity;
+            this.writePosition = writePosition;
+        }
+
+        long remaining() {
+            return capacity - writePosition;
+        }
+
+        long reserve(final int length) {
+            final long offset = writePosition;
+            writePosition += length;
+            return offset;
+        }
+
+        /**
+         * Gives back the most recent reservation.
+         */
+        void unreserve(final long offset) {
+            writePosition = offset;
+        }
+    }
+
+    private static final class RecordHeader {
+        final byte status;
+        final int blockLength;
+        final long bodyLength;
+
+        RecordHeader(byte status, int blockLength, long bodyLength) {
+            this.status = status;
+            this.blockLength = blockLength;
+            this.bodyLength = bodyLength;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package tv.xrm.qproxy.storage;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed block of off-heap memory handed out in power-of-two sized slots, managed as a buddy system: a slot is split
+ * off a free block of the next larger size if none of its own size is free, and a freed slot is merged with its buddy
+ * whenever that is free too. So memory freed by slots of one size can serve slots of any other, however the mix of
+ * sizes changes, and no garbage collection is involved.
+ */
+final class SlotArena {
+    static final int MIN_SLOT_SIZE = 64;
+
+    private final ByteBuffer block;
+    private final int maxSlotSize;
+
+    /**
+     * Offsets of the free blocks of each size class, lowest first.
+     */
+    private final TreeSet<Integer>[] freeBlocks;
+    private final Map<ByteBuffer, Integer> allocated = new IdentityHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    SlotArena(final int capacity, final int maxSlotSize) {
+        this.block = ByteBuffer.allocateDirect(capacity);
+        this.maxSlotSize = slotSizeFor(Math.max(MIN_SLOT_SIZE, maxSlotSize));
+        this.freeBlocks = new TreeSet[sizeClass(this.maxSlotSize) + 1];
+        for (int i = 0; i < freeBlocks.length; i++) {
+            freeBlocks[i] = new TreeSet<>();
+        }
+
+        // the block in the largest pieces that are aligned to their own size, as buddies have to be
+        int offset = 0;
+        while (capacity - offset >= MIN_SLOT_SIZE) {
+            int size = Math.min(this.maxSlotSize, Integer.highestOneBit(capacity - offset));
+            while (offset % size != 0) {
+                size >>= 1;
+            }
+            freeBlocks[sizeClass(size)].add(offset);
+            offset += size;
+        }
+    }
+
+    /**
+     * @return a cleared slot of at least the given size, or null if the request is too large or the arena is full
+     */
+    synchronized ByteBuffer allocate(final int size) {
+        if (size > maxSlotSize) {
+            return null;
+        }
+        final int sizeClass = sizeClass(slotSizeFor(size));
+        int from = sizeClass;
+        while (from < freeBlocks.length && freeBlocks[from].isEmpty()) {
+            from++;
+        }
+        if (from == freeBlocks.length) {
+            return null;
+        }
+
+        final int offset = freeBlocks[from].pollFirst();
+        for (int c = from; c > sizeClass; c--) {
+            // keep the lower half, free the upper one
+            freeBlocks[c - 1].add(offset + sizeOf(c - 1));
+        }
+
+        final int slotSize = sizeOf(sizeClass);
+        final ByteBuffer view = block.duplicate();
+        view.limit(offset + slotSize);
+        view.position(offset);
+        final ByteBuffer slot = view.slice();
+        allocated.put(slot, offset);
+        usedBytes.addAndGet(slotSize);
+        return slot;
+    }
+
+    synchronized void free(final ByteBuffer slot) {
+        final Integer allocatedOffset = allocated.remove(slot);
+        if (allocatedOffset == null) {
+            throw new IllegalArgumentException("not a slot of this arena");
+        }
+        usedBytes.addAndGet(-slot.capacity());
+
+        int offset = allocatedOffset;
+        int sizeClass = sizeClass(slot.capacity());
+        while (sizeClass < freeBlocks.length - 1) {
+            final int buddy = offset ^ sizeOf(sizeClass);
+            if (!freeBlocks[sizeClass].remove(buddy)) {
+                break;
+            }
+            offset = Math.min(offset, buddy);
+            sizeClass++;
+        }
+        freeBlocks[sizeClass].add(offset);
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    int getMaxSlotSize() {
+        return maxSlotSize;
+    }
+
+    static int slotSizeFor(final int size) {
+        if (size <= MIN_SLOT_SIZE) {
+            return MIN_SLOT_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int sizeClass(final int slotSize) {
+        return Integer.numberOfTrailingZeros(slotSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+    }
+
+    private static int sizeOf(final int sizeClass) {
+        return MIN_SLOT_SIZE << sizeClass;
+    }
+}
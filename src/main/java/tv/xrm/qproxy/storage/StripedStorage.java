@@ -0,0 +1,182 @@
+package tv.xrm.qproxy.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestStorage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Spreads requests over several storages, typically one per data directory or disk. IDs are prefixed with the number
+ * of the stripe the request went to.
+ */
+public class StripedStorage implements RequestStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(StripedStorage.class);
+
+    private static final char SEPARATOR = ':';
+
+    /**
+     * How a stripe is chosen for a new request.
+     */
+    public enum Mode {
+        /**
+         * Each request goes to the next stripe in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * All requests for the same target host go to the same stripe, and so do all requests of a queue.
+         */
+        HOST;
+
+        public static Mode fromConfig(final String value) {
+            switch (value) {
+                case "roundRobin":
+                    return ROUND_ROBIN;
+                case "host":
+                    return HOST;
+                default:
+                    throw new IllegalStateException("unknown stripeMode " + value);
+            }
+        }
+    }
+
+    private interface DiskStat {
+        long get(FileStore store) throws IOException;
+    }
+
+    private final List<RequestStorage> stripes;
+
+    private final Mode mode;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param directories the data directory of each stripe, in the same order; used for the disk usage gauges
+     */
+    public StripedStorage(final List<RequestStorage> stripes, final List<Path> directories, final Mode mode,
+            final MetricRegistry metricRegistry) {
+        if (stripes.isEmpty() || stripes.size() != directories.size()) {
+            throw new IllegalArgumentException("need one directory for each of at least one stripe");
+        }
+        this.stripes = new ArrayList<>(stripes);
+        this.mode = mode;
+
+        for (int i = 0; i < directories.size(); i++) {
+            registerDiskGauge(metricRegistry, i, directories.get(i), "usable-bytes", FileStore::getUsableSpace);
+            registerDiskGauge(metricRegistry, i, directories.get(i), "used-bytes",
+                    store -> store.getTotalSpace() - store.getUnallocatedSpace());
+        }
+    }
+
+    @Override
+    public String store(final Request request) throws IOException {
+        final int stripe = stripeFor(request.getUri());
+        return Integer.toString(stripe) + SEPARATOR + stripes.get(stripe).store(request);
+    }
+
+    /**
+     * The whole batch goes to the stripe chosen for its first request, so that it is still written together.
+     */
+    @Override
+    public List<String> storeAll(final List<Request> requests) throws IOException {
+        if (requests.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int stripe = stripeFor(requests.get(0).getUri());
+        return stripes.get(stripe).storeAll(requests).stream()
+                .map(id -> Integer.toString(stripe) + SEPARATOR + id)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Request retrieve(final String id) throws IOException {
+        final int separator = id.indexOf(SEPARATOR);
+        final RequestStorage stripe = separator < 0 ? null : stripe(id.substring(0, separator));
+        if (stripe == null) {
+            throw new IOException("no such stripe in " + id);
+        }
+        return Request.withId(stripe.retrieve(id.substring(separator + 1)), id);
+    }
+
+    /**
+     * The stripes are read side by side, and their requests merged oldest first.
+     */
+    @Override
+    public Stream<Request> recover() {
+        final List<Stream<Request>> recovered = new ArrayList<>(stripes.size());
+        for (int i = 0; i < stripes.size(); i++) {
+            final String prefix = Integer.toString(i) + SEPARATOR;
+            recovered.add(stripes.get(i).recover().map(req -> Request.withId(req, prefix + req.getId())));
+        }
+        return RecoveryStreams.merged(recovered);
+    }
+
+    @Override
+    public void delete(final String id) {
+        if (id == null) {
+            return;
+        }
+        final int separator = id.indexOf(SEPARATOR);
+        final RequestStorage stripe = separator < 0 ? null : stripe(id.substring(0, separator));
+        if (stripe == null) {
+            LOG.warn("unable to delete {}: no such stripe", id);
+            return;
+        }
+        stripe.delete(id.substring(separator + 1));
+    }
+
+    int stripeFor(final URI uri) {
+        switch (mode) {
+            case HOST:
+                final String authority = uri.getAuthority();
+                return Math.floorMod(authority == null ? 0 : authority.hashCode(), stripes.size());
+            default:
+                return Math.floorMod(next.getAndIncrement(), stripes.size());
+        }
+    }
+
+    private RequestStorage stripe(final String number) {
+        try {
+            final int i = Integer.parseInt(number);
+            return i >= 0 && i < stripes.size() ? stripes.get(i) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void registerDiskGauge(final MetricRegistry metricRegistry, final int stripe, final Path directory,
+            final String metric, final DiskStat value) {
+        metricRegistry.register(name(StripedStorage.class, "stripe-" + stripe, metric), (Gauge<Long>) () -> {
+            try {
+                return value.get(Files.getFileStore(directory));
+            } catch (IOException e) {
+                LOG.debug("unable to read disk usage of {}", directory, e);
+                return -1L;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "StripedStorage{" +
+                "stripes=" + stripes +
+                ", mode=" + mode +
+                '}';
+    }
+}
@@ -0,0 +1,196 @@
+package tv.xrm.qproxy.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps requests with small bodies in off-heap memory and passes everything else on to a disk storage: bodies larger
+ * than the memory tier's slot size, and any request that arrives while the memory budget is used up.
+ * <p>
+ * Requests held in memory do not survive a restart, so this only makes sense where durability is not required.
+ */
+public class TieredStorage implements RequestStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(TieredStorage.class);
+
+    static final String MEMORY_ID_PREFIX = "mem-";
+
+    private final RequestStorage disk;
+
+    private final SlotArena arena;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong idCounter = new AtomicLong();
+
+    private final ThreadLocal<ByteBuffer> scratch;
+
+    private final Meter storedInMemory;
+    private final Meter spilledLarge;
+    private final Meter spilledFull;
+
+    private static final class Entry {
+        final Request metadata;
+        final ByteBuffer slot;
+
+        Entry(Request metadata, ByteBuffer slot) {
+            this.metadata = metadata;
+            this.slot = slot;
+        }
+    }
+
+    public TieredStorage(final RequestStorage disk, final MetricRegistry metricRegistry, final int memoryBudgetBytes,
+            final int maxBodyBytes) {
+        this.disk = Objects.requireNonNull(disk);
+        this.arena = new SlotArena(memoryBudgetBytes, maxBodyBytes);
+        // one byte more than fits, to tell a body that fits exactly from one that is too large
+        this.scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(maxBodyBytes + 1));
+
+        storedInMemory = metricRegistry.meter(name(TieredStorage.class, "stored-in-memory"));
+        spilledLarge = metricRegistry.meter(name(TieredStorage.class, "spilled-large"));
+        spilledFull = metricRegistry.meter(name(TieredStorage.class, "spilled-full"));
+        metricRegistry.register(name(TieredStorage.class, "memory-used-bytes"), (Gauge<Long>) arena::getUsedBytes);
+    }
+
+    @Override
+    public String store(final Request request) throws IOException {
+        final ByteBuffer buffer = scratch.get();
+        buffer.clear();
+
+        try (ReadableByteChannel body = request.getBodyStream()) {
+            while (buffer.hasRemaining()) {
+                if (body.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            if (buffer.limit() == buffer.capacity()) {
+                spilledLarge.mark();
+                return disk.store(withBody(request, new PrefixedChannel(buffer, body)));
+            }
+
+            final ByteBuffer slot = arena.allocate(buffer.remaining());
+            if (slot == null) {
+                spilledFull.mark();
+                return disk.store(withBody(request, new PrefixedChannel(buffer, body)));
+            }
+
+            slot.put(buffer);
+            slot.flip();
+            final String id = MEMORY_ID_PREFIX + idCounter.incrementAndGet();
+            entries.put(id, new Entry(withBody(request, null), slot));
+            storedInMemory.mark();
+            return id;
+        }
+    }
+
+    @Override
+    public Request retrieve(final String id) throws IOException {
+        if (!Objects.requireNonNull(id).startsWith(MEMORY_ID_PREFIX)) {
+            return disk.retrieve(id);
+        }
+
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            throw new IOException("no such request " + id);
+        }
+        final Request md = entry.metadata;
+        LOG.debug("retrieved {} {}", id, md.getUri());
+
+        // a read-only view; the slot is only recycled once the request has been deleted
+        return new Request(md.getUri(), md.getHeaders(), new ByteBufferChannel(entry.slot.asReadOnlyBuffer()), id, 0,
+                md.getReceivedTimestamp());
+    }
+
+    /**
+     * Only the disk tier; requests in memory are gone after a restart anyway.
+     */
+    @Override
+    public Stream<Request> recover() {
+        return disk.recover();
+    }
+
+    @Override
+    public void delete(final String id) {
+        if (id == null) {
+            return;
+        }
+        if (!id.startsWith(MEMORY_ID_PREFIX)) {
+            disk.delete(id);
+            return;
+        }
+
+        final Entry entry = entries.remove(id);
+        if (entry != null) {
+            arena.free(entry.slot);
+        }
+    }
+
+    private static Request withBody(final Request original, final ReadableByteChannel body) {
+        return new Request(original.getUri(), original.getHeaders(), body, original.getId(),
+                original.getRetryCount(), original.getReceivedTimestamp());
+    }
+
+    @Override
+    public String toString() {
+        return "TieredStorage{" +
+                "disk=" + disk +
+                ", maxBodyBytes=" + arena.getMaxSlotSize() +
+                '}';
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, then the rest of a channel.
+     */
+    static final class PrefixedChannel implements ReadableByteChannel {
+        private final ByteBuffer prefix;
+        private final ReadableByteChannel rest;
+        private boolean open = true;
+
+        PrefixedChannel(final ByteBuffer prefix, final ReadableByteChannel rest) {
+            this.prefix = prefix;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            if (prefix.hasRemaining()) {
+                final int n = Math.min(prefix.remaining(), dst.remaining());
+                final ByteBuffer part = prefix.duplicate();
+                part.limit(part.position() + n);
+                dst.put(part);
+                prefix.position(prefix.position() + n);
+                return n;
+            }
+            return rest.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            rest.close();
+        }
+    }
+}
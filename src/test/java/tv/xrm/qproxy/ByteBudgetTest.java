@@ -0,0 +1,35 @@
+package tv.xrm.qproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBudgetTest {
+
+    @Test
+    public void reservesUpToLimit() {
+        ByteBudget budget = new ByteBudget(10);
+        assertTrue(budget.tryReserve(6));
+        assertTrue(budget.hasRoomFor(4));
+        assertFalse(budget.tryReserve(5));
+        assertEquals(6, budget.getUsed());
+        assertTrue(budget.tryReserve(4));
+        assertFalse(budget.hasRoomFor(1));
+    }
+
+    @Test
+    public void releasesBytes() {
+        ByteBudget budget = new ByteBudget(10);
+        assertTrue(budget.tryReserve(10));
+        budget.release(3);
+        assertEquals(7, budget.getUsed());
+        assertTrue(budget.tryReserve(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNonPositiveLimit() {
+        new ByteBudget(0);
+    }
+}
@@ -0,0 +1,59 @@
+package tv.xrm.qproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("HashedWheelTimerTest", 10, 8);
+
+    @After
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Test
+    public void runsTaskNoEarlierThanDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong ranAt = new AtomicLong();
+        final long start = System.nanoTime();
+
+        timer.schedule(() -> {
+            ranAt.set(System.nanoTime());
+            latch.countDown();
+        }, 200);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start) >= 200);
+    }
+
+    @Test
+    public void runsTasksBeyondOneWheelRotation() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        timer.schedule(latch::countDown, 0);
+        timer.schedule(latch::countDown, 35);
+        timer.schedule(latch::countDown, 250);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void countsPendingTasks() {
+        timer.schedule(() -> {
+        }, 10000);
+        timer.schedule(() -> {
+        }, 10000);
+
+        assertEquals(2, timer.getPendingCount());
+    }
+}
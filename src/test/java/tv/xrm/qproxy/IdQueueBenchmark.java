@@ -0,0 +1,56 @@
+package tv.xrm.qproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the queue implementations under contention: many producer threads, as servlet threads enqueueing, and a
+ * few consumer threads, as dispatchers. Offers on a full queue fail and are counted like successful ones, so look at
+ * the poll rate for how many entries actually went through. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=tv.xrm.qproxy.IdQueueBenchmark</code>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IdQueueBenchmark {
+
+    @Param({"linked", "ring"})
+    public String queueType;
+
+    @Param({"4096"})
+    public int capacity;
+
+    private static final String ID = "00000000000000000042-4711";
+
+    private IdQueue queue;
+
+    @Setup
+    public void setup() {
+        queue = QueueType.fromConfig(queueType).create(capacity);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(16)
+    public boolean offer() {
+        return queue.offer(ID, 0);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public IdQueue.Entry poll() {
+        return queue.poll();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IdQueueBenchmark.class.getSimpleName()).build()).run();
+    }
+}
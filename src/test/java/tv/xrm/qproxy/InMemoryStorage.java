@@ -2,11 +2,14 @@ package tv.xrm.qproxy;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
-final class InMemoryStorage implements RequestStorage {
+public final class InMemoryStorage implements RequestStorage {
     private final Map<String, Request> requestMap = new HashMap<>();
     private int idCounter = 0;
 
@@ -27,8 +30,13 @@ final class InMemoryStorage implements RequestStorage {
     }
 
     @Override
-    public List<Request> retrieve() {
-        return new ArrayList<>(requestMap.values());
+    public Stream<Request> recover() {
+        final List<Request> result = new ArrayList<>();
+        for (Request r : requestMap.values()) {
+            result.add(new Request(r.getUri(), Collections.emptyMap(), null, r.getId(), 0, r.getReceivedTimestamp()));
+        }
+        result.sort(Comparator.comparingLong(Request::getReceivedTimestamp));
+        return result.stream();
     }
 
     @Override
@@ -1,13 +1,204 @@
 package tv.xrm.qproxy;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
 import org.junit.Test;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class QueueRegistryTest {
 
+    private final HashedWheelTimer timer = new HashedWheelTimer("QueueRegistryTest_delayTimer", 10, 64);
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger stopped = new AtomicInteger();
+    private volatile CountDownLatch stopGate = new CountDownLatch(0);
+
+    private final QueueRegistry.RequestQueueAndDispatcherFactory factory =
+            new QueueRegistry.RequestQueueAndDispatcherFactory() {
+                @Override
+                public RequestQueue getQueue(String id, RoutingTable.Route route) {
+                    return new RequestQueue(id, new InMemoryStorage(), metricRegistry, 16, timer);
+                }
+
+                @Override
+                public RequestDispatcher getDispatcher(RequestQueue queue, RoutingTable.Route route) {
+                    return new RequestDispatcher() {
+                        @Override
+                        public void start() {
+                            started.incrementAndGet();
+                        }
+
+                        @Override
+                        public void stop() {
+                            stopped.incrementAndGet();
+                            Uninterruptibles.awaitUninterruptibly(stopGate);
+                        }
+                    };
+                }
+            };
+
+    @After
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Test
+    public void evictsIdleQueuesAndRecreatesThem() throws InterruptedException {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+        final URI u = URI.create("http://foo.bar:80/blaz");
+
+        final RequestQueue q = reg.getQueue(u);
+        assertSame(q, reg.getQueue(u));
+        assertEquals(0, reg.evictIdle(60000));
+
+        Thread.sleep(5);
+        assertEquals(1, reg.evictIdle(1));
+        assertEquals(0, reg.size());
+        assertEquals(1, stopped.get());
+
+        final RequestQueue q2 = reg.getQueue(u);
+        assertNotSame(q, q2);
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    public void stopsEvictedDispatcherOutsideTheMapLock() throws Exception {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+        final URI u = URI.create("http://foo.bar:80/blaz");
+        final RequestQueue q = reg.getQueue(u);
+        Thread.sleep(5);
+
+        stopGate = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Future<Integer> eviction = executor.submit(() -> reg.evictIdle(1));
+            while (stopped.get() == 0) {
+                Thread.sleep(1);
+            }
+
+            // other queues are not held up by the stopping dispatcher
+            assertNotNull(executor.submit(() -> reg.getQueue(URI.create("http://blah.bar:80/")))
+                    .get(5, TimeUnit.SECONDS));
+            // but the replacement waits until it has stopped
+            final Future<RequestQueue> replacement = executor.submit(() -> reg.getQueue(u));
+            Thread.sleep(50);
+            assertFalse(replacement.isDone());
+
+            stopGate.countDown();
+            assertEquals(1, (int) eviction.get(5, TimeUnit.SECONDS));
+            assertNotSame(q, replacement.get(5, TimeUnit.SECONDS));
+            assertEquals(3, started.get());
+        } finally {
+            stopGate.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsQueuesWithOutstandingRequests() throws InterruptedException {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+
+        final Request r = reg.enqueue(TestDataFactory.generateRequest());
+        Thread.sleep(5);
+        assertEquals(0, reg.evictIdle(1));
+
+        final RequestQueue q = reg.getQueue(r.getUri());
+        q.take();
+        q.cleanup(r.getId());
+        Thread.sleep(5);
+        assertEquals(1, reg.evictIdle(1));
+    }
+
+    @Test
+    public void enqueueRetriesOnRetiredQueue() throws InterruptedException {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+        final Request req = TestDataFactory.generateRequest();
+
+        final RequestQueue old = reg.getQueue(req.getUri());
+        Thread.sleep(5);
+        old.retireIfIdle(1);
+
+        reg.enqueue(req);
+        assertNotSame(old, reg.getQueue(req.getUri()));
+    }
+
+    @Test
+    public void enqueuesBatchesPerQueueInOrder() throws InterruptedException {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+        final List<Request> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(new Request(URI.create(i % 2 == 0 ? "http://foo.bar/a" : "http://blah.bar/b"),
+                    TestDataFactory.generateHeaders(), TestDataFactory.channelFromString("x"), null, 0, 0));
+        }
+
+        final List<Request> enqueued = reg.enqueueAll(batch);
+
+        assertEquals(20, enqueued.size());
+        assertEquals(2, reg.size());
+        // queue capacity is 16, so each queue takes all ten of its requests
+        for (int i = 0; i < 20; i++) {
+            assertEquals(batch.get(i).getUri(), enqueued.get(i).getUri());
+            assertNotNull(enqueued.get(i).getId());
+        }
+        assertEquals(enqueued.get(0), reg.getQueue(URI.create("http://foo.bar/a")).take());
+        assertEquals(enqueued.get(1), reg.getQueue(URI.create("http://blah.bar/b")).take());
+    }
+
+    @Test
+    public void reportsFailedQueuesOfBatch() {
+        final QueueRegistry reg = new QueueRegistry(factory, 0);
+        final List<Request> batch = new ArrayList<>();
+        for (int i = 0; i < 17; i++) {
+            batch.add(new Request(URI.create("http://foo.bar/a"), TestDataFactory.generateHeaders(),
+                    TestDataFactory.channelFromString("x"), null, 0, 0));
+        }
+        batch.add(new Request(URI.create("http://blah.bar/b"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString("x"), null, 0, 0));
+
+        final List<Request> enqueued = reg.enqueueAll(batch);
+
+        assertNull(enqueued.get(0).getId());
+        assertNull(enqueued.get(16).getId());
+        assertNotNull(enqueued.get(17).getId());
+    }
+
+    @Test
+    public void keysQueuesByRoute() {
+        final QueueRegistry reg = new QueueRegistry(factory, RoutingTable.builder(
+                new RoutingTable.Route("default", false, 0, 0, 0, 0))
+                .prefix("http://foo.bar/single", new RoutingTable.Route("single", true, 0, 0, 0, 0))
+                .prefix("http://foo.bar/deep", new RoutingTable.Route("deep", false, -1, 0, 0, 0))
+                .build());
+
+        assertSame(reg.getQueue(URI.create("http://foo.bar/single/a")),
+                reg.getQueue(URI.create("http://foo.bar/single/b")));
+        assertNotSame(reg.getQueue(URI.create("http://foo.bar/deep/a")),
+                reg.getQueue(URI.create("http://foo.bar/deep/b")));
+        assertSame(reg.getQueue(URI.create("http://foo.bar/a")), reg.getQueue(URI.create("http://foo.bar/b")));
+        assertNotSame(reg.getQueue(URI.create("http://foo.bar/a")),
+                reg.getQueue(URI.create("http://foo.bar/single/a")));
+        assertEquals(4, reg.size());
+    }
+
     @Test
     public void splitsACouple() {
         URI u = URI.create("http://foo.bar:80/blaz/bar/boo/sap/phew?bla=zap&meep=zing");
@@ -1,12 +1,29 @@
 package tv.xrm.qproxy;
 
 import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import tv.xrm.qproxy.storage.FileStorage;
 
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
 public class RequestQueueTest {
@@ -14,11 +31,26 @@ public class RequestQueueTest {
     private RequestQueue q;
     private static final int CAPACITY = 1024;
 
+    private Path tempFolder;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("RequestQueueTest_delayTimer", 10, 64);
+
     @Before
-    public void setup() {
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(RequestQueueTest.class.getSimpleName());
         MetricRegistry metricRegistryMock = mock(MetricRegistry.class);
         RequestStorage requestStorage = new InMemoryStorage();
-        q = new RequestQueue("test", requestStorage, metricRegistryMock, CAPACITY);
+        q = new RequestQueue("test", requestStorage, metricRegistryMock, CAPACITY, timer);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        timer.stop();
+        try (Stream<Path> files = Files.walk(tempFolder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
     }
 
     @Test
@@ -51,6 +83,88 @@ public class RequestQueueTest {
         assertEquals(r, taken);
     }
 
+    @Test
+    public void pollsWithoutWaiting() throws IOException {
+        assertNull(q.poll());
+        Request r = q.enqueue(TestDataFactory.generateRequest());
+        assertEquals(r, q.poll());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void notifiesListenerOnEnqueueAndRequeue() throws IOException, InterruptedException {
+        final AtomicInteger notified = new AtomicInteger();
+        q.setAvailabilityListener(notified::incrementAndGet);
+
+        Request r = q.enqueue(TestDataFactory.generateRequest());
+        assertEquals(1, notified.get());
+
+        q.take();
+        q.requeue(r, 0);
+        q.take();
+        assertEquals(2, notified.get());
+    }
+
+    @Test
+    public void adoptsStoredRequests() throws IOException, InterruptedException {
+        RequestStorage storage = new InMemoryStorage();
+        String id = storage.store(TestDataFactory.generateRequest());
+        RequestQueue adopting = new RequestQueue("adopting", storage, mock(MetricRegistry.class), 1, timer);
+
+        assertTrue(adopting.adopt(TestDataFactory.recoverAll(storage).get(0), 0));
+        assertFalse(adopting.adopt(TestDataFactory.recoverAll(storage).get(0), 0));
+        assertEquals(id, adopting.take().getId());
+    }
+
+    @Test(expected = RequestQueue.QueueRetiredException.class)
+    public void refusesRequestsWhenRetired() throws InterruptedException {
+        Request r = q.enqueue(TestDataFactory.generateRequest());
+        assertFalse(q.retireIfIdle(0));
+        q.take();
+        q.cleanup(r.getId());
+
+        assertTrue(q.retireIfIdle(0));
+        q.enqueue(TestDataFactory.generateRequest());
+    }
+
+    @Test
+    public void submitsStoredRequestsOnlyWhenAsked() throws InterruptedException {
+        Request stored = q.store(TestDataFactory.generateRequest());
+        assertNull(q.poll());
+        assertTrue(q.hasOutstanding());
+
+        q.submit(stored);
+        assertEquals(stored, q.take());
+    }
+
+    @Test
+    public void cleansUpStoredRequestsWithoutSubmitting() {
+        Request stored = q.store(TestDataFactory.generateRequest());
+        q.cleanup(stored.getId());
+
+        assertFalse(q.hasOutstanding());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void enqueuesBatches() throws InterruptedException {
+        List<Request> enqueued = q.enqueueAll(Arrays.asList(TestDataFactory.generateRequest(),
+                TestDataFactory.generateRequest()));
+
+        assertEquals(2, enqueued.size());
+        assertEquals(enqueued.get(0), q.take());
+        assertEquals(enqueued.get(1), q.take());
+    }
+
+    @Test(expected = RequestQueue.RequestQueueException.class)
+    public void refusesBatchesLargerThanCapacity() {
+        List<Request> batch = new ArrayList<>();
+        for (int i = 0; i <= CAPACITY; i++) {
+            batch.add(TestDataFactory.generateRequest());
+        }
+        q.enqueueAll(batch);
+    }
+
     @Test(expected = RequestQueue.RequestQueueException.class)
     public void barfsWhenFull() throws IOException {
         for (int i = 0; i <= CAPACITY; i++) {
@@ -58,4 +172,90 @@ public class RequestQueueTest {
         }
     }
 
+    @Test
+    public void refusesRequestsBeyondByteBudget() throws IOException, InterruptedException {
+        ByteBudget global = new ByteBudget(100);
+        RequestQueue budgeted = new RequestQueue("budgeted", new FileStorage(tempFolder),
+                mock(MetricRegistry.class), CAPACITY, timer, QueueType.LINKED, 10, global);
+
+        Request first = budgeted.enqueue(requestWithBody("0123456789"));
+        assertEquals(10, global.getUsed());
+        try {
+            budgeted.enqueue(requestWithBody("x"));
+            fail("queue budget exceeded");
+        } catch (RequestQueue.BudgetExceededException e) {
+            assertFalse(e.isGlobal());
+        }
+        assertEquals(10, global.getUsed());
+
+        assertEquals(first.getId(), budgeted.take().getId());
+        assertNull(budgeted.poll());
+        budgeted.cleanup(first.getId());
+        assertEquals(0, global.getUsed());
+        budgeted.enqueue(requestWithBody("x"));
+    }
+
+    @Test
+    public void refusesRequestsBeyondGlobalByteBudget() throws IOException {
+        ByteBudget global = new ByteBudget(5);
+        RequestQueue budgeted = new RequestQueue("budgeted", new FileStorage(tempFolder),
+                mock(MetricRegistry.class), CAPACITY, timer, QueueType.LINKED, 0, global);
+
+        try {
+            budgeted.enqueueAll(Arrays.asList(requestWithBody("012"), requestWithBody("345")));
+            fail("global budget exceeded");
+        } catch (RequestQueue.BudgetExceededException e) {
+            assertTrue(e.isGlobal());
+        }
+        assertEquals(0, global.getUsed());
+        assertTrue(budgeted.isEmpty());
+        assertTrue(TestDataFactory.recoverAll(new FileStorage(tempFolder)).isEmpty());
+    }
+
+    @Test
+    public void refusesAdmissionBeyondByteBudgetBeforeReadingBody() throws IOException {
+        ByteBudget global = new ByteBudget(100);
+        RequestQueue budgeted = new RequestQueue("budgeted", new FileStorage(tempFolder),
+                mock(MetricRegistry.class), CAPACITY, timer, QueueType.LINKED, 10, global);
+
+        try {
+            budgeted.admit(11);
+            fail("queue budget exceeded");
+        } catch (RequestQueue.BudgetExceededException e) {
+            assertFalse(e.isGlobal());
+        }
+        assertEquals(0, global.getUsed());
+        assertFalse(budgeted.hasOutstanding());
+
+        RequestQueue.Admission admission = budgeted.admit(10);
+        assertEquals(10, global.getUsed());
+        admission.cancel();
+        admission.cancel();
+        assertEquals(0, global.getUsed());
+        assertFalse(budgeted.hasOutstanding());
+    }
+
+    @Test
+    public void neverRejectsAdmittedRequestForItsSize() throws IOException, InterruptedException {
+        ByteBudget global = new ByteBudget(100);
+        RequestQueue budgeted = new RequestQueue("budgeted", new FileStorage(tempFolder),
+                mock(MetricRegistry.class), CAPACITY, timer, QueueType.LINKED, 10, global);
+
+        Request larger = budgeted.admit(4).store(requestWithBody("0123456789AB"));
+        assertEquals(12, global.getUsed());
+        budgeted.cleanup(larger.getId());
+        assertEquals(0, global.getUsed());
+
+        Request smaller = budgeted.admit(10).store(requestWithBody("01"));
+        assertEquals(2, global.getUsed());
+        budgeted.submit(smaller);
+        assertEquals(smaller.getId(), budgeted.take().getId());
+        budgeted.cleanup(smaller.getId());
+        assertEquals(0, global.getUsed());
+    }
+
+    private static Request requestWithBody(String body) {
+        return new Request(URI.create("http://foo.bar"), Collections.emptyMap(),
+                TestDataFactory.channelFromString(body), null, 0, System.currentTimeMillis());
+    }
 }
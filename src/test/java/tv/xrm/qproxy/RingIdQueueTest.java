@@ -0,0 +1,119 @@
+package tv.xrm.qproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingIdQueueTest {
+
+    @Test
+    public void isFifoAcrossLaps() {
+        final RingIdQueue q = new RingIdQueue(3);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(q.offer("a" + i, i));
+            assertTrue(q.offer("b" + i, i));
+            assertEquals(2, q.size());
+
+            IdQueue.Entry e = q.poll();
+            assertEquals("a" + i, e.id);
+            assertEquals(i, e.retries);
+            assertEquals("b" + i, q.poll().id);
+            assertNull(q.poll());
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    @Test
+    public void refusesWhenFull() throws InterruptedException {
+        final RingIdQueue q = new RingIdQueue(2);
+        assertTrue(q.offer("a", 0));
+        assertTrue(q.offer("b", 0));
+        assertEquals(0, q.remainingCapacity());
+        assertFalse(q.offer("c", 0));
+        assertFalse(q.offer("c", 0, 10, TimeUnit.MILLISECONDS));
+
+        q.poll();
+        assertTrue(q.offer("c", 0, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000)
+    public void takeWaitsForProducer() throws InterruptedException {
+        final RingIdQueue q = new RingIdQueue(4);
+        final Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            q.offer("late", 1);
+        });
+        producer.start();
+
+        assertEquals("late", q.take().id);
+        producer.join();
+    }
+
+    @Test(timeout = 30000)
+    public void deliversEverythingOnceUnderContention() throws InterruptedException {
+        final RingIdQueue q = new RingIdQueue(16);
+        final int producers = 4;
+        final int consumers = 3;
+        final int perProducer = 20000;
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!q.offer(producer + "-" + i, 0)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        final List<Thread> consumerThreads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            consumerThreads.add(new Thread(() -> {
+                try {
+                    while (true) {
+                        assertTrue(seen.add(q.take().id));
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        consumerThreads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        while (seen.size() < producers * perProducer) {
+            Thread.sleep(10);
+        }
+        consumerThreads.forEach(Thread::interrupt);
+        for (Thread t : consumerThreads) {
+            t.join();
+        }
+
+        final Set<String> expected = new HashSet<>();
+        for (int p = 0; p < producers; p++) {
+            for (int i = 0; i < perProducer; i++) {
+                expected.add(p + "-" + i);
+            }
+        }
+        assertEquals(expected, seen);
+        assertTrue(q.isEmpty());
+    }
+}
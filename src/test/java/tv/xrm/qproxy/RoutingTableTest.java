@@ -0,0 +1,69 @@
+package tv.xrm.qproxy;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RoutingTableTest {
+
+    private final RoutingTable.Route defaultRoute = new RoutingTable.Route("default", false, 1, 0, 0, 0);
+    private final RoutingTable.Route host = new RoutingTable.Route("host", true, 0, 0, 0, 0);
+    private final RoutingTable.Route deep = new RoutingTable.Route("deep", false, -1, 0, 0, 0);
+    private final RoutingTable.Route regex = new RoutingTable.Route("regex", true, 0, 0, 0, 0);
+    private final RoutingTable.Route other = new RoutingTable.Route("other", true, 0, 0, 0, 0);
+
+    private final RoutingTable table = RoutingTable.builder(defaultRoute)
+            .prefix("http://foo.bar", host)
+            .prefix("http://foo.bar/api/v1", deep)
+            .regex("https?://[^/]+\\.example\\.com/.*", regex)
+            .regex("https?://(www\\.)?example\\.com/.*", other)
+            .build();
+
+    @Test
+    public void longestPrefixWins() {
+        assertSame(host, table.route(URI.create("http://foo.bar/api")));
+        assertSame(host, table.route(URI.create("http://foo.bar/api/v2/x")));
+        assertSame(deep, table.route(URI.create("http://foo.bar/api/v1")));
+        assertSame(deep, table.route(URI.create("http://foo.bar/api/v1/x/y?z=1")));
+    }
+
+    @Test
+    public void prefixesMatchWholePathElementsAndOrigin() {
+        assertSame(host, table.route(URI.create("http://foo.bar/api/v10")));
+        assertSame(host, table.route(URI.create("http://FOO.bar:80/")));
+        assertSame(defaultRoute, table.route(URI.create("http://foo.bar:8080/api")));
+        assertSame(defaultRoute, table.route(URI.create("https://foo.bar/api")));
+    }
+
+    @Test
+    public void fallsBackToRegexesInOrderAndThenDefault() {
+        assertSame(regex, table.route(URI.create("https://www.example.com/x?y=z")));
+        assertSame(other, table.route(URI.create("http://example.com/x")));
+        assertSame(defaultRoute, table.route(URI.create("http://example.org/x")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatePrefixes() {
+        RoutingTable.builder(defaultRoute).prefix("http://foo.bar/a", host).prefix("http://foo.bar:80/a/", deep)
+                .build();
+    }
+
+    @Test
+    public void allowsSameGroupNamesInDifferentRegexes() {
+        final RoutingTable named = RoutingTable.builder(defaultRoute)
+                .regex("http://(?<host>a+)\\.example\\.com/\\k<host>", regex)
+                .regex("http://(?<host>[^/]+)/(?<route0>.*)", other)
+                .build();
+        assertSame(regex, named.route(URI.create("http://aa.example.com/aa")));
+        assertSame(other, named.route(URI.create("http://aa.example.com/a")));
+    }
+
+    @Test
+    public void renamesOnlyNamedGroups() {
+        assertEquals("(?<px>a)\\k<px>(?<=b)(?<!c)\\(?<y>[(?<z>]\\Q(?<q>\\E",
+                RoutingTable.renameGroups("(?<x>a)\\k<x>(?<=b)(?<!c)\\(?<y>[(?<z>]\\Q(?<q>\\E", "p"));
+    }
+}
@@ -0,0 +1,86 @@
+package tv.xrm.qproxy;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP target for tests, on the JDK's built-in server: answers every request with a settable status, records
+ * the bodies it got, and can hold its responses back to keep requests in flight.
+ */
+public final class StubTarget implements Closeable {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HttpServer server;
+
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    public StubTarget() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            final int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try (InputStream in = exchange.getRequestBody()) {
+                bodies.add(new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+                gate.await(10, TimeUnit.SECONDS);
+                exchange.sendResponseHeaders(status.get(), -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public String url(final String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    public void respondWith(final int status) {
+        this.status.set(status);
+    }
+
+    /**
+     * Hold all responses back until {@link #release()}.
+     */
+    public void hold() {
+        gate = new CountDownLatch(1);
+    }
+
+    public void release() {
+        gate.countDown();
+    }
+
+    public List<String> getBodies() {
+        return bodies;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    @Override
+    public void close() {
+        release();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
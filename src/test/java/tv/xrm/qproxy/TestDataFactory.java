@@ -11,7 +11,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class TestDataFactory {
     private TestDataFactory() {
@@ -43,4 +46,10 @@ public final class TestDataFactory {
                 System.currentTimeMillis()
         );
     }
+
+    public static List<Request> recoverAll(RequestStorage storage) {
+        try (Stream<Request> recovered = storage.recover()) {
+            return recovered.collect(Collectors.toList());
+        }
+    }
 }
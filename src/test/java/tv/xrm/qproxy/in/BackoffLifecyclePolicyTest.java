@@ -0,0 +1,82 @@
+package tv.xrm.qproxy.in;
+
+import org.junit.Test;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffLifecyclePolicyTest {
+
+    private static BackoffLifecyclePolicy policy(final BackoffLifecyclePolicy.Jitter jitter) {
+        return new BackoffLifecyclePolicy(4, 3, 3600, 20, jitter);
+    }
+
+    private static Request withRetries(final int retries) {
+        return Request.withRetries(TestDataFactory.generateRequest(), retries);
+    }
+
+    @Test
+    public void fullJitterStaysBelowExponentialDelayAndCap() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.FULL);
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.shouldRetryIn(withRetries(0));
+            assertTrue(first >= 0 && first <= 1000);
+            final long fourth = policy.shouldRetryIn(withRetries(3));
+            assertTrue(fourth >= 0 && fourth <= 20000);
+        }
+    }
+
+    @Test
+    public void decorrelatedJitterStaysBetweenOneSecondAndCap() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.DECORRELATED);
+        for (int i = 0; i < 100; i++) {
+            for (int retries = 0; retries <= 4; retries++) {
+                final long delay = policy.shouldRetryIn(withRetries(retries));
+                assertTrue(delay >= 1000 && delay <= 20000);
+            }
+        }
+    }
+
+    @Test
+    public void decorrelatedJitterIsStableForARequest() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.DECORRELATED);
+        final Request req = withRetries(2);
+        assertEquals(policy.shouldRetryIn(req), policy.shouldRetryIn(req));
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.FULL);
+        assertEquals(15000, policy.shouldRetryIn(withRetries(0), 503, 15000));
+        assertTrue(policy.shouldRetryIn(withRetries(0), 503, -1) <= 1000);
+    }
+
+    @Test
+    public void capsRetryAfter() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.DECORRELATED);
+        assertEquals(20000, policy.shouldRetryIn(withRetries(0), 429, 60000));
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.DECORRELATED);
+        assertEquals(LifecyclePolicy.DO_NOT_RETRY, policy.shouldRetryIn(withRetries(5), 503, 60000));
+    }
+
+    @Test
+    public void retriesTooManyRequests() {
+        final BackoffLifecyclePolicy policy = policy(BackoffLifecyclePolicy.Jitter.FULL);
+        assertTrue(policy.shouldRetryOnStatus(429));
+        assertTrue(policy.shouldRetryOnStatus(503));
+        assertFalse(policy.shouldRetryOnStatus(500));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnknownJitter() {
+        BackoffLifecyclePolicy.Jitter.fromConfig("some");
+    }
+}
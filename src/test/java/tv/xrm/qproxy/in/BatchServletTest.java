@@ -0,0 +1,90 @@
+package tv.xrm.qproxy.in;
+
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BatchServletTest {
+
+    @Test
+    public void parsesTextBody() throws Exception {
+        Request r = BatchServlet.parseEntry(
+                "{\"url\":\"http://foo.bar/baz\",\"headers\":{\"X-Foo\":[\"bar\"],\"Content-Length\":[\"4\"]}," +
+                        "\"body\":\"blah\"}", 1000);
+
+        assertEquals(URI.create("http://foo.bar/baz"), r.getUri());
+        assertEquals(Collections.singletonList("bar"), r.getHeaders().get("X-Foo"));
+        assertFalse(r.getHeaders().containsKey("Content-Length"));
+        assertEquals(1000, r.getReceivedTimestamp());
+        assertEquals("blah", TestDataFactory.stringFromChannel(r.getBodyStream()));
+    }
+
+    @Test
+    public void parsesBase64Body() throws Exception {
+        Request r = BatchServlet.parseEntry("{\"url\":\"http://foo.bar/baz\",\"bodyBase64\":\"YmxhaA==\"}", 1000);
+
+        assertEquals("blah", TestDataFactory.stringFromChannel(r.getBodyStream()));
+    }
+
+    @Test(expected = URISyntaxException.class)
+    public void rejectsRelativeUrl() throws Exception {
+        BatchServlet.parseEntry("{\"url\":\"/foo\"}", 1000);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedJson() throws Exception {
+        BatchServlet.parseEntry("{\"url\":", 1000);
+    }
+
+    @Test
+    public void splitsLines() throws Exception {
+        BatchServlet.LineReader reader = lineReader("a\r\n\nbc\nd", 0, 0);
+        assertEquals("a", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("bc", reader.readLine());
+        assertEquals("d", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void limitsLineLength() throws Exception {
+        BatchServlet.LineReader reader = lineReader("abc\nabcd\n", 0, 3);
+        assertEquals("abc", reader.readLine());
+        try {
+            reader.readLine();
+            fail("line too long");
+        } catch (BatchServlet.TooLargeException e) {
+            assertEquals("entry larger than 3 bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void limitsTotalLength() throws Exception {
+        BatchServlet.LineReader reader = lineReader("ab\ncd\nef\n", 7, 0);
+        assertEquals("ab", reader.readLine());
+        assertEquals("cd", reader.readLine());
+        try {
+            reader.readLine();
+            fail("batch too large");
+        } catch (BatchServlet.TooLargeException e) {
+            assertEquals("batch larger than 7 bytes", e.getMessage());
+        }
+    }
+
+    private static BatchServlet.LineReader lineReader(String s, long maxTotalBytes, long maxLineBytes) {
+        return new BatchServlet.LineReader(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)), maxTotalBytes,
+                maxLineBytes);
+    }
+}
@@ -0,0 +1,68 @@
+package tv.xrm.qproxy.in;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BodySpoolTest {
+    private Path tempFolder;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(BodySpoolTest.class.getSimpleName());
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.delete(tempFolder);
+    }
+
+    @Test
+    public void keepsSmallBodiesInMemory() throws IOException {
+        try (BodySpool spool = new BodySpool(tempFolder, 100)) {
+            write(spool, "hello ");
+            write(spool, "world");
+
+            assertEquals(0, countFiles());
+            assertEquals("hello world", TestDataFactory.stringFromChannel(spool.channel()));
+            assertEquals("hello world", StandardCharsets.UTF_8.decode(spool.inMemory()).toString());
+        }
+    }
+
+    @Test
+    public void spillsLargeBodiesToFileAndDeletesIt() throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        try (BodySpool spool = new BodySpool(tempFolder, 10)) {
+            for (int i = 0; i < 5; i++) {
+                final String chunk = "chunk " + i + ";";
+                expected.append(chunk);
+                write(spool, chunk);
+            }
+
+            assertEquals(1, countFiles());
+            assertNull(spool.inMemory());
+            assertEquals(expected.toString(), TestDataFactory.stringFromChannel(spool.channel()));
+        }
+        assertEquals(0, countFiles());
+    }
+
+    private static void write(final BodySpool spool, final String chunk) throws IOException {
+        final byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+        spool.write(bytes, 0, bytes.length);
+    }
+
+    private long countFiles() throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(tempFolder)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package tv.xrm.qproxy.in;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.HashedWheelTimer;
+import tv.xrm.qproxy.QueueRegistry;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestDispatcher;
+import tv.xrm.qproxy.RequestQueue;
+import tv.xrm.qproxy.RoutingTable;
+import tv.xrm.qproxy.StubTarget;
+import tv.xrm.qproxy.TestDataFactory;
+import tv.xrm.qproxy.out.DirectDelivery;
+import tv.xrm.qproxy.storage.FileStorage;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The servlet with direct delivery to a local target, and a queue that is not dispatched, so that whatever has been
+ * queued can be looked at.
+ */
+public class ProxyServletDeliveryTest {
+    private static final int CAPACITY = 1;
+    private static final int SMALL = 100;
+    private static final int STREAMED = 1000;
+    private static final int DELIVERY_TIMEOUT = 5000;
+    private static final long ASYNC_TIMEOUT = 1000;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("ProxyServletDeliveryTest_delayTimer", 10, 64);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private Path tempFolder;
+    private FileStorage storage;
+    private QueueRegistry queueRegistry;
+    private StubTarget target;
+    private DirectDelivery directDelivery;
+    private ProxyServlet servlet;
+    private ProxyServlet asyncServlet;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(ProxyServletDeliveryTest.class.getSimpleName());
+        storage = new FileStorage(tempFolder);
+        queueRegistry = new QueueRegistry(new QueueRegistry.RequestQueueAndDispatcherFactory() {
+            @Override
+            public RequestQueue getQueue(String id, RoutingTable.Route route) {
+                return new RequestQueue(id, storage, metricRegistry, CAPACITY, timer);
+            }
+
+            @Override
+            public RequestDispatcher getDispatcher(RequestQueue queue, RoutingTable.Route route) {
+                return new RequestDispatcher() {
+                    @Override
+                    public void start() {
+                    }
+
+                    @Override
+                    public void stop() {
+                    }
+                };
+            }
+        }, 1);
+        target = new StubTarget();
+        directDelivery = new DirectDelivery(metricRegistry, new DefaultLifecyclePolicy(3, 2, 3600), SMALL, STREAMED,
+                DELIVERY_TIMEOUT, 100, null);
+        directDelivery.start();
+        servlet = ProxyServlet.builder(queueRegistry, metricRegistry, "test").directDelivery(directDelivery).build();
+        asyncServlet = ProxyServlet.builder(queueRegistry, metricRegistry, "test")
+                .spool(tempFolder, 4096, ASYNC_TIMEOUT)
+                .directDelivery(directDelivery)
+                .build();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        directDelivery.stop();
+        target.close();
+        timer.stop();
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void turnsAwayStreamedRequestIfQueueFillsDuringUpload() throws Exception {
+        target.respondWith(503);
+        final String body = body(STREAMED);
+        final InputStream upload = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)) {
+            private boolean filled;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (!filled) {
+                    // another producer takes the last place while this body is still arriving
+                    filled = true;
+                    queueRegistry.enqueue(new Request(URI.create(target.url("/streamed")), Collections.emptyMap(),
+                            TestDataFactory.channelFromString("x"), null, 0, System.currentTimeMillis()));
+                }
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doPost(post(target.url("/streamed"), body.length(), upload), resp);
+
+        verify(resp).sendError(eq(429), anyString());
+        verify(resp, never()).setStatus(HttpServletResponse.SC_ACCEPTED);
+        assertEquals(Collections.singletonList(body), target.getBodies().subList(0, 1));
+        // only the other producer's request is left
+        final RequestQueue queue = queueRegistry.getQueue(URI.create(target.url("/streamed")));
+        assertEquals("x", TestDataFactory.stringFromChannel(queue.poll().getBodyStream()));
+        assertNull(queue.poll());
+        assertEquals(1, TestDataFactory.recoverAll(new FileStorage(tempFolder)).size());
+    }
+
+    @Test
+    public void queuesStreamedRequestOnlyOnceTargetHasAnswered() throws Exception {
+        target.respondWith(503);
+        final String body = body(STREAMED);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doPost(post(target.url("/streamed"), body.length(), stream(body)), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(resp).setHeader(eq("X-XRM-Stored-As"), anyString());
+        assertQueued("/streamed", body);
+    }
+
+    @Test
+    public void deletesStreamedRequestTakenByTarget() throws Exception {
+        final String body = body(STREAMED);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doPost(post(target.url("/streamed"), body.length(), stream(body)), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(resp).setHeader("X-XRM-Delivered", "direct");
+        assertEquals(Collections.singletonList(body), target.getBodies());
+        assertTrue(TestDataFactory.recoverAll(new FileStorage(tempFolder)).isEmpty());
+    }
+
+    @Test
+    public void deliversSmallRequestWithoutStoringIt() throws Exception {
+        final String body = body(SMALL);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doPost(post(target.url("/small"), body.length(), stream(body)), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(resp).setHeader("X-XRM-Delivered", "direct");
+        assertEquals(Collections.singletonList(body), target.getBodies());
+        assertTrue(TestDataFactory.recoverAll(new FileStorage(tempFolder)).isEmpty());
+    }
+
+    @Test
+    public void storesSmallRequestIfDirectAttemptFails() throws Exception {
+        target.respondWith(503);
+        final String body = body(SMALL);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        servlet.doPost(post(target.url("/small"), body.length(), stream(body)), resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(resp).setHeader(eq("X-XRM-Stored-As"), anyString());
+        assertEquals(Collections.singletonList(body), target.getBodies());
+        assertQueued("/small", body);
+    }
+
+    @Test
+    public void queuesSmallRequestBehindBacklog() throws Exception {
+        final String body = body(SMALL);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+        backlog("/small");
+
+        servlet.doPost(post(target.url("/small"), body.length(), stream(body)), resp);
+
+        verify(resp).setHeader(eq("X-XRM-Stored-As"), anyString());
+        assertTrue(target.getBodies().isEmpty());
+        assertQueued("/small", body);
+    }
+
+    @Test
+    public void deliversAsyncRequestWithoutStoringIt() throws Exception {
+        final String body = body(SMALL);
+        final AsyncPost post = new AsyncPost(target.url("/async"), body);
+
+        asyncServlet.doPost(post.req, post.resp);
+        post.receive();
+
+        verify(post.async, timeout(5000)).complete();
+        verify(post.resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(post.resp).setHeader("X-XRM-Delivered", "direct");
+        assertEquals(Collections.singletonList(body), target.getBodies());
+        assertTrue(TestDataFactory.recoverAll(new FileStorage(tempFolder)).isEmpty());
+    }
+
+    @Test
+    public void storesAsyncRequestIfDirectAttemptFails() throws Exception {
+        target.respondWith(503);
+        final String body = body(SMALL);
+        final AsyncPost post = new AsyncPost(target.url("/async"), body);
+
+        asyncServlet.doPost(post.req, post.resp);
+        post.receive();
+
+        verify(post.async, timeout(5000)).complete();
+        verify(post.resp).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(post.resp).setHeader(eq("X-XRM-Stored-As"), anyString());
+        assertEquals(Collections.singletonList(body), target.getBodies());
+        assertQueued("/async", body);
+    }
+
+    @Test
+    public void queuesAsyncRequestBehindBacklog() throws Exception {
+        final String body = body(SMALL);
+        final AsyncPost post = new AsyncPost(target.url("/async"), body);
+        backlog("/async");
+
+        asyncServlet.doPost(post.req, post.resp);
+        post.receive();
+
+        verify(post.async).complete();
+        verify(post.resp).setHeader(eq("X-XRM-Stored-As"), anyString());
+        assertTrue(target.getBodies().isEmpty());
+        assertQueued("/async", body);
+    }
+
+    @Test
+    public void answersTimeoutDuringDirectDeliveryWithoutWaitingForIt() throws Exception {
+        target.hold();
+        target.respondWith(503);
+        final String body = body(SMALL);
+        final AsyncPost post = new AsyncPost(target.url("/async"), body);
+
+        asyncServlet.doPost(post.req, post.resp);
+        post.receive();
+
+        verify(post.async).setTimeout(DELIVERY_TIMEOUT + ASYNC_TIMEOUT);
+        post.listener.onTimeout(null);
+        verify(post.resp).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+        verify(post.async).complete();
+
+        // the attempt fails after the client has been told to retry, so nothing is written and nothing is stored
+        target.release();
+        final com.codahale.metrics.Meter queued = metricRegistry.meter(
+                MetricRegistry.name(DirectDelivery.class, "queued"));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (queued.getCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queued.getCount());
+        verify(post.resp, never()).setStatus(HttpServletResponse.SC_ACCEPTED);
+        verify(post.async, timeout(100).times(1)).complete();
+        assertTrue(TestDataFactory.recoverAll(new FileStorage(tempFolder)).isEmpty());
+    }
+
+    /**
+     * A request of the queue for the path that is being delivered: outstanding, but leaving the queue room.
+     */
+    private void backlog(final String path) {
+        final RequestQueue queue = queueRegistry.getQueue(URI.create(target.url(path)));
+        queue.enqueue(new Request(URI.create(target.url(path)), Collections.emptyMap(),
+                TestDataFactory.channelFromString("x"), null, 0, System.currentTimeMillis()));
+        assertNotNull(queue.poll());
+    }
+
+    private void assertQueued(final String path, final String body) throws IOException {
+        final Request queued = queueRegistry.getQueue(URI.create(target.url(path))).poll();
+        assertNotNull(queued);
+        assertEquals(body, TestDataFactory.stringFromChannel(queued.getBodyStream()));
+    }
+
+    static String body(final int length) {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, 'b');
+        return new String(chars);
+    }
+
+    static InputStream stream(final String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static HttpServletRequest post(final String url, final long contentLength, final InputStream body)
+            throws IOException {
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getQueryString()).thenReturn("url=" + URLEncoder.encode(url, "UTF-8"));
+        when(req.getContentLengthLong()).thenReturn(contentLength);
+        when(req.getHeaderNames()).thenReturn(Collections.emptyEnumeration());
+        when(req.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return body.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return body.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return false;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        return req;
+    }
+
+    /**
+     * A POST taken asynchronously, as the servlet does with a spool; the test plays the container and calls the
+     * listeners the servlet registered.
+     */
+    static final class AsyncPost {
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+        final AsyncContext async = mock(AsyncContext.class);
+        AsyncListener listener;
+        ReadListener reader;
+
+        AsyncPost(final String url, final String body) throws IOException {
+            final ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+            when(req.getQueryString()).thenReturn("url=" + URLEncoder.encode(url, "UTF-8"));
+            when(req.getContentLengthLong()).thenReturn((long) body.length());
+            when(req.getHeaderNames()).thenReturn(Collections.emptyEnumeration());
+            when(req.isAsyncSupported()).thenReturn(true);
+            when(req.startAsync()).thenReturn(async);
+            when(async.getRequest()).thenReturn(req);
+            when(async.getResponse()).thenReturn(resp);
+            doAnswer(invocation -> {
+                listener = invocation.getArgument(0);
+                return null;
+            }).when(async).addListener(any(AsyncListener.class));
+            when(req.getInputStream()).thenReturn(new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    reader = readListener;
+                }
+            });
+        }
+
+        /**
+         * The whole body arrives at once.
+         */
+        void receive() throws IOException {
+            reader.onDataAvailable();
+            reader.onAllDataRead();
+        }
+    }
+}
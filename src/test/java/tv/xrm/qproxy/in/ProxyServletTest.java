@@ -4,6 +4,9 @@ import org.junit.Test;
 
 import java.net.URISyntaxException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 public class ProxyServletTest {
 
     @Test(expected = URISyntaxException.class)
@@ -21,4 +24,13 @@ public class ProxyServletTest {
         ProxyServlet.checkAsURI("http://user:pw@foo.bar/baz");
     }
 
+    @Test
+    public void takesUrlFromQueryString() {
+        final String query = "x=1&url=http%3A%2F%2Ffoo.bar%2Fbaz%3Fa%3Db&y";
+        assertEquals("http://foo.bar/baz?a=b", ProxyServlet.queryParameter(query, "url"));
+        assertEquals("", ProxyServlet.queryParameter(query, "y"));
+        assertNull(ProxyServlet.queryParameter(query, "z"));
+        assertNull(ProxyServlet.queryParameter(null, "url"));
+    }
+
 }
@@ -0,0 +1,105 @@
+package tv.xrm.qproxy.in;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+import tv.xrm.qproxy.HashedWheelTimer;
+import tv.xrm.qproxy.InMemoryStorage;
+import tv.xrm.qproxy.QueueRegistry;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestDispatcher;
+import tv.xrm.qproxy.RequestQueue;
+import tv.xrm.qproxy.RoutingTable;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class RouteCacheTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("RouteCacheTest_delayTimer", 10, 64);
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private final QueueRegistry queueRegistry = new QueueRegistry(new QueueRegistry.RequestQueueAndDispatcherFactory() {
+        @Override
+        public RequestQueue getQueue(String id, RoutingTable.Route route) {
+            return new RequestQueue(id, new InMemoryStorage(), metricRegistry, 16, timer);
+        }
+
+        @Override
+        public RequestDispatcher getDispatcher(RequestQueue queue, RoutingTable.Route route) {
+            return new RequestDispatcher() {
+                @Override
+                public void start() {
+                }
+
+                @Override
+                public void stop() {
+                }
+            };
+        }
+    }, 1);
+
+    @After
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Test
+    public void remembersRoutes() throws URISyntaxException {
+        final RouteCache cache = new RouteCache(queueRegistry, metricRegistry, 10);
+
+        final RouteCache.Route route = cache.resolve("http://foo.bar/baz?x=1");
+        assertSame(route, cache.resolve("http://foo.bar/baz?x=1"));
+        assertNotSame(route, cache.resolve("http://foo.bar/baz?x=2"));
+    }
+
+    @Test
+    public void enqueuesOnReplacementOfRetiredQueue() throws URISyntaxException, InterruptedException {
+        final RouteCache cache = new RouteCache(queueRegistry, metricRegistry, 10);
+        final RouteCache.Route route = cache.resolve("http://foo.bar/baz");
+
+        final Request first = cache.enqueue(route, requestTo(route));
+        final RequestQueue old = route.queue;
+        assertEquals(first, old.take());
+        old.cleanup(first.getId());
+        Thread.sleep(5);
+        assertEquals(1, queueRegistry.evictIdle(1));
+
+        final Request second = cache.enqueue(route, requestTo(route));
+        assertNotSame(old, route.queue);
+        assertEquals(second, queueRegistry.getQueue(route.uri).take());
+    }
+
+    @Test(expected = URISyntaxException.class)
+    public void rejectsInvalidUrls() throws URISyntaxException {
+        new RouteCache(queueRegistry, metricRegistry, 10).resolve("/relative");
+    }
+
+    @Test
+    public void worksWithoutCaching() throws URISyntaxException {
+        final RouteCache cache = new RouteCache(queueRegistry, metricRegistry, 0);
+
+        assertNotSame(cache.resolve("http://foo.bar/baz"), cache.resolve("http://foo.bar/baz"));
+    }
+
+    private static Request requestTo(final RouteCache.Route route) {
+        return new Request(route.uri, TestDataFactory.generateHeaders(), TestDataFactory.channelFromString("x"), null,
+                0, System.currentTimeMillis());
+    }
+
+    @Test(expected = RequestQueue.QueueFullException.class)
+    public void refusesAdmissionToFullQueue() throws URISyntaxException {
+        final RouteCache cache = new RouteCache(queueRegistry, metricRegistry, 10);
+        final RouteCache.Route route = cache.resolve("http://foo.bar/baz");
+        for (int i = 0; i < 16; i++) {
+            cache.checkAdmission(route, -1);
+            cache.enqueue(route, TestDataFactory.generateRequest());
+        }
+        cache.checkAdmission(route, -1);
+    }
+}
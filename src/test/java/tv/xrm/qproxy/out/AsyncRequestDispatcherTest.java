@@ -0,0 +1,246 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.HashedWheelTimer;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestQueue;
+import tv.xrm.qproxy.StubTarget;
+import tv.xrm.qproxy.TestDataFactory;
+import tv.xrm.qproxy.storage.FileStorage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The dispatcher against a local target; failed requests are retried only after a long delay unless a test says
+ * otherwise, so that they can be counted. While idle, the dispatcher holds one permit, waiting for the next request.
+ */
+public class AsyncRequestDispatcherTest {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("AsyncRequestDispatcherTest_delayTimer", 10, 64);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final TestPolicy policy = new TestPolicy();
+
+    private Path tempFolder;
+    private RequestQueue queue;
+    private StubTarget target;
+    private AsyncRequestDispatcher dispatcher;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(AsyncRequestDispatcherTest.class.getSimpleName());
+        queue = new RequestQueue("q", new FileStorage(tempFolder), metricRegistry, 16, timer);
+        target = new StubTarget();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        target.release();
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+        target.close();
+        timer.stop();
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void releasesPermitWhenRequestCannotBeSent() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+        queue.enqueue(request("foo://localhost/unsupported", "first"));
+        queue.enqueue(request(target.url("/q"), "second"));
+
+        start(limit, CircuitBreaker.disabled());
+
+        await(() -> target.getBodies().size() == 1 && limit.getInFlight() == 1);
+        assertEquals(Collections.singletonList("second"), target.getBodies());
+        assertEquals(1, policy.retries.get());
+        assertTrue(queue.hasOutstanding());
+    }
+
+    @Test
+    public void releasesPermitWhenResponseHandlingFails() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+        policy.failures.set(1);
+        queue.enqueue(request(target.url("/q"), "first"));
+        queue.enqueue(request(target.url("/q"), "second"));
+
+        start(limit, CircuitBreaker.disabled());
+
+        await(() -> target.getBodies().size() == 2 && limit.getInFlight() == 1);
+        // the first one's outcome is unknown, so it is retried
+        assertEquals(1, policy.retries.get());
+        assertTrue(queue.hasOutstanding());
+    }
+
+    @Test
+    public void releasesPermitsOnRetry() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+        target.respondWith(503);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(request(target.url("/q"), "r" + i));
+        }
+
+        start(limit, CircuitBreaker.disabled());
+
+        await(() -> policy.retries.get() == 3 && limit.getInFlight() == 1);
+        assertEquals(3, target.getBodies().size());
+        assertTrue(queue.hasOutstanding());
+    }
+
+    @Test
+    public void releasesPermitsWhenStoppedWhileWaitingForRequests() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+        final CircuitBreaker breaker = new CircuitBreaker("q", 1, 10);
+        breaker.onResult(breaker.awaitPermission(), false);
+        Thread.sleep(20);
+
+        start(limit, breaker);
+        // the feeder holds a permit and the half open circuit's probe while waiting for a request
+        await(() -> limit.getInFlight() == 1 && breaker.getState() == CircuitBreaker.State.HALF_OPEN);
+
+        dispatcher.stop();
+        dispatcher = null;
+
+        assertEquals(0, limit.getInFlight());
+        final CountDownLatch probing = new CountDownLatch(1);
+        final Thread prober = new Thread(() -> {
+            try {
+                breaker.awaitPermission();
+                probing.countDown();
+            } catch (InterruptedException ignored) {
+                // test over
+            }
+        });
+        prober.start();
+        assertTrue(probing.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsAtMostMaxInFlight() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(2);
+        target.hold();
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(request(target.url("/q"), "r" + i));
+        }
+
+        start(limit, CircuitBreaker.disabled());
+
+        await(() -> target.getBodies().size() == 2);
+        Thread.sleep(100);
+        assertEquals(2, target.getBodies().size());
+        assertEquals(2, limit.getInFlight());
+
+        target.release();
+        await(() -> target.getBodies().size() == 5 && limit.getInFlight() == 1);
+        assertEquals(2, target.getMaxInFlight());
+        assertEquals(0, policy.retries.get());
+    }
+
+    @Test
+    public void stopLeavesNothingStranded() throws InterruptedException {
+        final ConcurrencyLimit limit = ConcurrencyLimit.fixed(2);
+        policy.retryDelayMillis = 0;
+        target.hold();
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(request(target.url("/q"), "r" + i));
+        }
+
+        start(limit, CircuitBreaker.disabled());
+        await(() -> target.getBodies().size() == 2);
+
+        dispatcher.stop();
+        dispatcher = null;
+
+        // the requests in flight are aborted with the client and go back to the queue
+        await(() -> limit.getInFlight() == 0 && policy.retries.get() == 2);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    private void start(final ConcurrencyLimit limit, final CircuitBreaker breaker) {
+        dispatcher = new AsyncRequestDispatcher(queue, metricRegistry, policy, 100, TIMEOUT_MILLIS, 0, null, limit,
+                breaker);
+        dispatcher.start();
+    }
+
+    private static Request request(final String uri, final String body) {
+        return new Request(URI.create(uri), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString(body), null, 0, System.currentTimeMillis());
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Delivered on 2xx, retried otherwise; counts retries, and can be made to fail.
+     */
+    private static final class TestPolicy implements LifecyclePolicy {
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long retryDelayMillis = 60000;
+
+        @Override
+        public boolean isSuccessfullyDelivered(final int httpStatusCode) {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("policy failed");
+            }
+            return httpStatusCode / 100 == 2;
+        }
+
+        @Override
+        public boolean shouldRetryOnStatus(final int httpStatusCode) {
+            return true;
+        }
+
+        @Override
+        public long shouldRetryIn(final Request req) {
+            retries.incrementAndGet();
+            return retryDelayMillis;
+        }
+
+        @Override
+        public boolean shouldForget(final Request req) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void disabledNeverOpens() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.disabled();
+        for (int i = 0; i < 100; i++) {
+            breaker.onResult(breaker.awaitPermission(), false);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAfterFailuresInARow() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 3, 60000);
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.onResult(breaker.awaitPermission(), true);
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.onResult(breaker.awaitPermission(), false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onResult(breaker.awaitPermission(), false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void letsOneProbeThroughWhenHalfOpen() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 50);
+        breaker.onResult(breaker.awaitPermission(), false);
+
+        final long probe = breaker.awaitPermission();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        final CountDownLatch second = new CountDownLatch(1);
+        final Thread waiter = new Thread(() -> {
+            try {
+                breaker.awaitPermission();
+                second.countDown();
+            } catch (InterruptedException ignored) {
+                // test over
+            }
+        });
+        waiter.start();
+        assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+
+        breaker.onResult(probe, true);
+        assertTrue(second.await(1, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 50);
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.onResult(breaker.awaitPermission(), false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void ignoresLateResultsWhileHalfOpen() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 10);
+        final long early = breaker.awaitPermission();
+        final long late = breaker.awaitPermission();
+        breaker.onResult(early, false);
+
+        final long probe = breaker.awaitPermission();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onResult(late, true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(late, false);
+        breaker.cancel(late);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onResult(probe, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoresLateFailuresAfterClosing() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 10);
+        final long early = breaker.awaitPermission();
+        final long late = breaker.awaitPermission();
+        breaker.onResult(early, false);
+        breaker.onResult(breaker.awaitPermission(), true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onResult(late, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void cancelledProbeLetsAnotherThrough() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 10);
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.cancel(breaker.awaitPermission());
+        breaker.awaitPermission();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void countsTransitions() throws InterruptedException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        CircuitBreaker breaker = new CircuitBreaker("q", 1, 10);
+        breaker.registerMetrics(metricRegistry, "q");
+
+        breaker.onResult(breaker.awaitPermission(), false);
+        breaker.onResult(breaker.awaitPermission(), true);
+
+        assertEquals(1, metricRegistry.meter("q.circuit-opened").getCount());
+        assertEquals(1, metricRegistry.meter("q.circuit-half-opened").getCount());
+        assertEquals(1, metricRegistry.meter("q.circuit-closed").getCount());
+
+        breaker.removeMetrics(metricRegistry, "q");
+        assertTrue(metricRegistry.getNames().isEmpty());
+    }
+}
@@ -0,0 +1,99 @@
+package tv.xrm.qproxy.out;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimitTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    @Test
+    public void fixedLimitNeverChanges() throws InterruptedException {
+        ConcurrencyLimit limit = ConcurrencyLimit.fixed(2);
+        limit.acquire();
+        limit.acquire();
+        limit.release(SLOW, true);
+        limit.release(FAST, false);
+        assertEquals(2, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void growsWhileFastAndUsed() throws InterruptedException {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(1, 4, 100);
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, FAST, false);
+        }
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhenMostlyUnused() throws InterruptedException {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(8, 64, 100);
+        for (int i = 0; i < 10; i++) {
+            limit.acquire();
+            limit.release(FAST, false);
+        }
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void shrinksOnOverloadAndSlowResponses() throws InterruptedException {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(2, 40, 100);
+        for (int i = 0; i < 10; i++) {
+            fillAndRelease(limit, FAST, false);
+        }
+        assertEquals(40, limit.getLimit());
+
+        limit.acquire();
+        limit.release(FAST, true);
+        assertEquals(36, limit.getLimit());
+
+        limit.acquire();
+        limit.release(SLOW, false);
+        assertTrue(limit.getLimit() < 36);
+
+        for (int i = 0; i < 100; i++) {
+            limit.acquire();
+            limit.release(FAST, true);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    private static void fillAndRelease(ConcurrencyLimit limit, long latencyNanos, boolean overloaded)
+            throws InterruptedException {
+        final int n = limit.getLimit();
+        for (int i = 0; i < n; i++) {
+            limit.acquire();
+        }
+        for (int i = 0; i < n; i++) {
+            limit.release(latencyNanos, overloaded);
+        }
+    }
+
+    @Test
+    public void blocksBeyondLimit() throws InterruptedException {
+        ConcurrencyLimit limit = ConcurrencyLimit.fixed(1);
+        limit.acquire();
+
+        Thread waiter = new Thread(() -> {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+
+        limit.release();
+        waiter.join(1000);
+        assertEquals(1, limit.getInFlight());
+    }
+}
@@ -0,0 +1,124 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.StubTarget;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectDeliveryTest {
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final RetryOnServerError policy = new RetryOnServerError();
+
+    private StubTarget target;
+    private DirectDelivery delivery;
+
+    @Before
+    public void setup() throws IOException {
+        target = new StubTarget();
+        delivery = new DirectDelivery(metricRegistry, policy, 100, 1000, 5000, 100, null);
+        delivery.start();
+    }
+
+    @After
+    public void teardown() {
+        delivery.stop();
+        target.close();
+    }
+
+    @Test
+    public void choosesBySize() {
+        assertTrue(delivery.accepts(100));
+        assertFalse(delivery.accepts(101));
+        assertFalse(delivery.accepts(-1));
+        assertFalse(delivery.streams(999));
+        assertTrue(delivery.streams(1000));
+        assertFalse(delivery.streams(-1));
+    }
+
+    @Test
+    public void reportsDeliveredRequestAsHandled() throws InterruptedException {
+        assertTrue(delivery.deliver(request(target.url("/a")), body("hello")));
+
+        assertEquals(Collections.singletonList("hello"), target.getBodies());
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(DirectDelivery.class, "delivered")).getCount());
+    }
+
+    @Test
+    public void reportsRetryableFailureForQueueing() throws InterruptedException {
+        target.respondWith(503);
+
+        assertFalse(delivery.deliver(request(target.url("/a")), body("hello")));
+
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(DirectDelivery.class, "queued")).getCount());
+    }
+
+    @Test
+    public void givesUpOnPermanentFailure() throws InterruptedException {
+        target.respondWith(400);
+
+        assertTrue(delivery.deliver(request(target.url("/a")), body("hello")));
+    }
+
+    @Test(timeout = 10000)
+    public void reportsUnsendableRequestForQueueing() throws InterruptedException {
+        assertFalse(delivery.deliver(request("foo://localhost/a"), body("hello")));
+    }
+
+    @Test(timeout = 10000)
+    public void reportsFailedResponseHandlingForQueueing() throws InterruptedException {
+        policy.failing = true;
+
+        assertFalse(delivery.deliver(request(target.url("/a")), body("hello")));
+    }
+
+    private static Request request(final String uri) {
+        return new Request(URI.create(uri), TestDataFactory.generateHeaders(), null, null, 0,
+                System.currentTimeMillis());
+    }
+
+    private static ByteBuffer body(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class RetryOnServerError implements LifecyclePolicy {
+        volatile boolean failing;
+
+        @Override
+        public boolean isSuccessfullyDelivered(final int httpStatusCode) {
+            if (failing) {
+                throw new IllegalStateException("policy failed");
+            }
+            return httpStatusCode / 100 == 2;
+        }
+
+        @Override
+        public boolean shouldRetryOnStatus(final int httpStatusCode) {
+            return httpStatusCode >= 500;
+        }
+
+        @Override
+        public long shouldRetryIn(final Request req) {
+            return 0;
+        }
+
+        @Override
+        public boolean shouldForget(final Request req) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package tv.xrm.qproxy.out;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiscardingResponseListenerTest {
+
+    @Test
+    public void keepsOnlyPrefix() {
+        final DiscardingResponseListener listener = new DiscardingResponseListener(8);
+
+        final ByteBuffer first = ByteBuffer.wrap("hello ".getBytes(StandardCharsets.UTF_8));
+        final ByteBuffer second = ByteBuffer.wrap("world, and a lot more".getBytes(StandardCharsets.UTF_8));
+        listener.onContent(null, first);
+        listener.onContent(null, second);
+
+        assertEquals("hello wo", listener.getContentPrefix());
+    }
+
+    @Test
+    public void keepsNothingWithZeroPrefix() {
+        final DiscardingResponseListener listener = new DiscardingResponseListener(0);
+
+        listener.onContent(null, ByteBuffer.wrap(new byte[1024]));
+
+        assertEquals("", listener.getContentPrefix());
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        final long now = 1_000_000_000_000L;
+        assertEquals(120000, DiscardingResponseListener.retryAfterMillis(" 120 ", now));
+        assertEquals(-1, DiscardingResponseListener.retryAfterMillis(null, now));
+        assertEquals(-1, DiscardingResponseListener.retryAfterMillis("soon", now));
+        assertEquals(-1, DiscardingResponseListener.retryAfterMillis("-5", now));
+
+        // 2001-09-09T01:46:40Z is now
+        assertEquals(30000, DiscardingResponseListener.retryAfterMillis("Sun, 9 Sep 2001 01:47:10 GMT", now));
+        assertEquals(0, DiscardingResponseListener.retryAfterMillis("Sun, 9 Sep 2001 01:00:00 GMT", now));
+    }
+}
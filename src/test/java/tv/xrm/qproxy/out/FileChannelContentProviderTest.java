@@ -0,0 +1,76 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FileChannelContentProviderTest {
+    private static final int OFFSET = 100;
+
+    private Path file;
+    private byte[] content;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile(FileChannelContentProviderTest.class.getSimpleName(), ".req");
+        content = new byte[3 * FileChannelContentProvider.BUFFER_SIZE + 17];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Test
+    public void providesRemainderThroughPooledBuffers() throws IOException {
+        assertProvidesRemainder(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void providesRemainderThroughMapping() throws IOException {
+        assertProvidesRemainder(0);
+    }
+
+    private void assertProvidesRemainder(final long mmapThresholdBytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ch.position(OFFSET);
+            FileChannelContentProvider provider = new FileChannelContentProvider(ch, new ArrayByteBufferPool(),
+                    mmapThresholdBytes);
+
+            assertEquals(content.length - OFFSET, provider.getLength());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Iterator<ByteBuffer> it = provider.iterator();
+            while (it.hasNext()) {
+                ByteBuffer buffer = it.next();
+                byte[] chunk = new byte[buffer.remaining()];
+                buffer.get(chunk);
+                out.write(chunk);
+            }
+            if (it instanceof Closeable) {
+                ((Closeable) it).close();
+            }
+
+            byte[] expected = new byte[content.length - OFFSET];
+            System.arraycopy(content, OFFSET, expected, 0, expected.length);
+            assertArrayEquals(expected, out.toByteArray());
+        }
+    }
+}
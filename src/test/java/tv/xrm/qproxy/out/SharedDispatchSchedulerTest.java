@@ -0,0 +1,171 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.HashedWheelTimer;
+import tv.xrm.qproxy.LifecyclePolicy;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestDispatcher;
+import tv.xrm.qproxy.RequestQueue;
+import tv.xrm.qproxy.StubTarget;
+import tv.xrm.qproxy.TestDataFactory;
+import tv.xrm.qproxy.storage.FileStorage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shared pool dispatchers against a local target, with a single poster thread so that the order of delivery is the
+ * order in which the scheduler hands out requests.
+ */
+public class SharedDispatchSchedulerTest {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("SharedDispatchSchedulerTest_delayTimer", 10, 64);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final List<RequestDispatcher> dispatchers = new ArrayList<>();
+
+    private Path tempFolder;
+    private FileStorage storage;
+    private StubTarget target;
+    private SharedDispatchScheduler scheduler;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(SharedDispatchSchedulerTest.class.getSimpleName());
+        storage = new FileStorage(tempFolder);
+        target = new StubTarget();
+        scheduler = new SharedDispatchScheduler(metricRegistry, 1, 1, 4);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        scheduler.stop();
+        dispatchers.forEach(RequestDispatcher::stop);
+        target.close();
+        timer.stop();
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void coldQueueGetsItsTurnBesideHotOne() throws InterruptedException {
+        final RequestQueue hot = queue("hot", 1, 20);
+        final RequestQueue cold = queue("cold", 1, 4);
+
+        scheduler.start();
+
+        await(() -> target.getBodies().size() == 24);
+        // the cold queue's requests are not stuck behind the hot queue's backlog: they alternate
+        assertEquals(4, count(target.getBodies().subList(0, 8), "cold"));
+        assertTrue(hot.isEmpty() && cold.isEmpty());
+    }
+
+    @Test
+    public void sharesFollowWeights() throws InterruptedException {
+        queue("heavy", 3, 20);
+        queue("light", 1, 20);
+
+        scheduler.start();
+
+        await(() -> target.getBodies().size() == 40);
+        final List<String> first = target.getBodies().subList(0, 16);
+        assertEquals(12, count(first, "heavy"));
+        assertEquals(4, count(first, "light"));
+    }
+
+    @Test
+    public void idleQueuesCostNothing() throws InterruptedException {
+        final List<RequestQueue> idle = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            idle.add(queue("idle" + i, 1, 0));
+        }
+
+        scheduler.start();
+
+        // each is looked at once, found empty and dropped until it gets a request
+        await(() -> scheduler.getActiveQueueCount() == 0);
+        idle.get(37).enqueue(request("idle37", 0));
+        await(() -> target.getBodies().size() == 1);
+        assertEquals("idle37-0", target.getBodies().get(0));
+        await(() -> scheduler.getActiveQueueCount() == 0);
+    }
+
+    /**
+     * A queue with a started dispatcher, holding the given number of requests.
+     */
+    private RequestQueue queue(final String id, final int weight, final int requests) {
+        final RequestQueue queue = new RequestQueue(id, storage, metricRegistry, 32, timer);
+        for (int i = 0; i < requests; i++) {
+            queue.enqueue(request(id, i));
+        }
+        final SharedPoolRequestDispatcher dispatcher = new SharedPoolRequestDispatcher(queue, scheduler,
+                metricRegistry, new DeliveredOnSuccess(), weight, 100, TIMEOUT_MILLIS, 0, null);
+        dispatcher.start();
+        dispatchers.add(dispatcher);
+        return queue;
+    }
+
+    private Request request(final String queueId, final int i) {
+        return new Request(URI.create(target.url("/" + queueId)), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString(queueId + "-" + i), null, 0, System.currentTimeMillis());
+    }
+
+    private static long count(final List<String> bodies, final String queueId) {
+        return bodies.stream().filter(body -> body.startsWith(queueId + "-")).count();
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static final class DeliveredOnSuccess implements LifecyclePolicy {
+        @Override
+        public boolean isSuccessfullyDelivered(final int httpStatusCode) {
+            return httpStatusCode / 100 == 2;
+        }
+
+        @Override
+        public boolean shouldRetryOnStatus(final int httpStatusCode) {
+            return false;
+        }
+
+        @Override
+        public long shouldRetryIn(final Request req) {
+            return DO_NOT_RETRY;
+        }
+
+        @Override
+        public boolean shouldForget(final Request req) {
+            return true;
+        }
+    }
+}
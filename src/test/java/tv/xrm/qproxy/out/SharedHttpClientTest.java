@@ -0,0 +1,41 @@
+package tv.xrm.qproxy.out;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SharedHttpClientTest {
+    private static final String PREFIX = MetricRegistry.name(SharedHttpClient.class, "http://localhost:9");
+
+    private MetricRegistry metricRegistry;
+    private SharedHttpClient client;
+
+    @Before
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        client = new SharedHttpClient(metricRegistry, 1, 4, 30000, true);
+        client.start();
+    }
+
+    @After
+    public void teardown() {
+        client.stop();
+    }
+
+    @Test
+    public void publishesGaugesOfNewDestinations() {
+        client.getClient().getDestination("http", "localhost", 9);
+
+        for (String metric : new String[]{"active-connections", "idle-connections", "pending-connections",
+                "queued-requests"}) {
+            final Gauge<?> gauge = metricRegistry.getGauges().get(MetricRegistry.name(PREFIX, metric));
+            assertNotNull(metric, gauge);
+            assertEquals(metric, 0, gauge.getValue());
+        }
+    }
+}
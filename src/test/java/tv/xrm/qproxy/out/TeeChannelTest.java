@@ -0,0 +1,99 @@
+package tv.xrm.qproxy.out;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.junit.Test;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TeeChannelTest {
+
+    @Test
+    public void passesOnCopiesOfEveryChunk() throws IOException {
+        final DeferredContentProvider content = new DeferredContentProvider();
+        final Request upstream = mock(Request.class);
+        final TeeChannel tee = new TeeChannel(TestDataFactory.channelFromString("0123456789"), content, upstream);
+
+        final StringBuilder read = new StringBuilder();
+        final ByteBuffer buffer = ByteBuffer.allocate(4);
+        while (tee.read(buffer) >= 0) {
+            buffer.flip();
+            read.append(StandardCharsets.UTF_8.decode(buffer));
+            // overwrite what has been read, as a caller reusing its buffer would
+            buffer.clear();
+            buffer.put("xxxx".getBytes(StandardCharsets.UTF_8));
+            buffer.clear();
+        }
+        tee.close();
+
+        assertEquals("0123456789", read.toString());
+        assertEquals("0123456789", contentOf(content));
+        verify(upstream, never()).abort(any());
+    }
+
+    @Test
+    public void abortsUpstreamWhenClosedBeforeEnd() throws IOException {
+        final DeferredContentProvider content = new DeferredContentProvider();
+        final Request upstream = mock(Request.class);
+        final TeeChannel tee = new TeeChannel(TestDataFactory.channelFromString("0123456789"), content, upstream);
+
+        tee.read(ByteBuffer.allocate(4));
+        tee.close();
+
+        verify(upstream).abort(any(IOException.class));
+    }
+
+    @Test
+    public void abortsUpstreamWhenReadingFails() {
+        final IOException failure = new IOException("connection reset");
+        final ReadableByteChannel failing = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                throw failure;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final Request upstream = mock(Request.class);
+        final TeeChannel tee = new TeeChannel(failing, new DeferredContentProvider(), upstream);
+
+        try {
+            tee.read(ByteBuffer.allocate(4));
+            fail("read should fail");
+        } catch (IOException e) {
+            assertEquals(failure, e);
+        }
+        verify(upstream).abort(failure);
+    }
+
+    private static String contentOf(final DeferredContentProvider content) {
+        final StringBuilder result = new StringBuilder();
+        final Iterator<ByteBuffer> chunks = content.iterator();
+        while (chunks.hasNext()) {
+            final ByteBuffer chunk = chunks.next();
+            assertFalse(chunk == null);
+            result.append(StandardCharsets.UTF_8.decode(chunk));
+        }
+        return result.toString();
+    }
+}
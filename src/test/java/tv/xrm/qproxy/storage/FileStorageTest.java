@@ -87,11 +87,40 @@ public class FileStorageTest {
         Path corrupted3 = Files.createFile(tempFolder.resolve("corruptedFile3" + FileStorage.SUFFIX));
         Files.write(corrupted3, new byte[]{0, 0, 0, 127, 1, 2, 3, 4, 5, 6, 7});
 
-        List<Request> reqs = storage.retrieve();
+        List<Request> reqs = TestDataFactory.recoverAll(storage);
 
         assertNotNull(reqs);
         assertTrue(reqs.isEmpty());
     }
 
+    @Test
+    public void recoversMetadataOldestFirst() throws IOException {
+        String newer = storage.store(new Request(URI.create("http://foo.bar/new"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString("new"), null, 0, 2000));
+        String older = storage.store(new Request(URI.create("http://foo.bar/old"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString("old"), null, 0, 1000));
+        Files.createFile(tempFolder.resolve("corruptedFile" + FileStorage.SUFFIX));
+
+        List<Request> reqs = TestDataFactory.recoverAll(new FileStorage(tempFolder));
+
+        assertEquals(2, reqs.size());
+        assertEquals(older, reqs.get(0).getId());
+        assertEquals(URI.create("http://foo.bar/old"), reqs.get(0).getUri());
+        assertNull(reqs.get(0).getBodyStream());
+        assertEquals(newer, reqs.get(1).getId());
+        assertEquals(2000, reqs.get(1).getReceivedTimestamp());
+    }
+
+    @Test
+    public void recoversOnlyRequestsLeftOverWhenOpened() throws IOException {
+        String leftover = storage.store(TestDataFactory.generateRequest());
+        FileStorage restarted = new FileStorage(tempFolder);
+        restarted.store(TestDataFactory.generateRequest());
+
+        List<Request> reqs = TestDataFactory.recoverAll(restarted);
+
+        assertEquals(1, reqs.size());
+        assertEquals(leftover, reqs.get(0).getId());
+    }
 
 }
@@ -0,0 +1,114 @@
+package tv.xrm.qproxy.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitTest {
+    private Path tempFolder;
+    private GroupCommit groupCommit;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(GroupCommitTest.class.getSimpleName());
+        groupCommit = new GroupCommit("GroupCommitTest", 20, 1024 * 1024);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        groupCommit.stop();
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc == null) {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    @Test
+    public void releasesConcurrentCallersTogether() throws Exception {
+        final ExecutorService service = Executors.newFixedThreadPool(8);
+        try (FileChannel channel = FileChannel.open(tempFolder.resolve("data"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+            final long start = System.nanoTime();
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(service.submit(() -> {
+                    groupCommit.commit(channel, tempFolder, 3);
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get(2, TimeUnit.SECONDS);
+            }
+            // one window for all of them rather than one per caller
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 8 * 20);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closesGroupEarlyWhenFull() throws IOException {
+        final GroupCommit small = new GroupCommit("GroupCommitTest_small", 10000, 10);
+        try (FileChannel channel = FileChannel.open(tempFolder.resolve("data"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            final long start = System.nanoTime();
+            small.commit(channel, null, 100);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        } finally {
+            small.stop();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesCommitsWhenStopped() throws IOException {
+        groupCommit.stop();
+        groupCommit.commit(null, tempFolder, 0);
+    }
+
+    @Test
+    public void storesDurably() throws IOException {
+        final FileStorage storage = new FileStorage(tempFolder, Durability.BATCHED, groupCommit);
+        final Request req = TestDataFactory.generateRequest();
+
+        final String id = storage.store(req);
+
+        try (Request retrieved = storage.retrieve(id)) {
+            assertEquals(req.getUri(), retrieved.getUri());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package tv.xrm.qproxy.storage;
+
+import org.junit.Test;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarshallingTest {
+
+    private final Marshalling marshalling = new Marshalling();
+
+    @Test
+    public void roundTripsBinary() throws IOException {
+        final Map<String, Collection<String>> headers = TestDataFactory.generateHeaders();
+        headers.put("Content-Type", Arrays.asList("application/json; charset=UTF-8"));
+        headers.put("X-Ünicode", Arrays.asList("Съешь ещё", ""));
+        final FileStorage.StorageBlock stb = new FileStorage.StorageBlock(
+                URI.create("http://foo.com/bar/12354?bla=boo"), headers, 1571234567890L);
+
+        final byte[] bytes = marshalling.marshal(stb);
+        assertEquals(BinaryStorageBlockCodec.MAGIC, bytes[0]);
+
+        final FileStorage.StorageBlock result = marshalling.unmarshal(bytes);
+        assertEquals(stb.getUri(), result.getUri());
+        assertEquals(stb.getHeaders(), result.getHeaders());
+        assertEquals(stb.getReceivedTimestamp(), result.getReceivedTimestamp());
+    }
+
+    @Test
+    public void roundTripsHighDictionaryCodeAtEnd() throws IOException {
+        // the code of x-correlation-id is larger than the bytes that follow it
+        final Map<String, Collection<String>> headers = new LinkedHashMap<>();
+        headers.put("x-correlation-id", Arrays.asList("a"));
+        final FileStorage.StorageBlock stb = new FileStorage.StorageBlock(URI.create("http://foo.com/bar"), headers,
+                1571234567890L);
+
+        final FileStorage.StorageBlock result = marshalling.unmarshal(marshalling.marshal(stb));
+        assertEquals(headers, result.getHeaders());
+    }
+
+    @Test
+    public void readsLegacyJson() throws IOException {
+        final String json = "{\"uri\":\"http://foo.com/bar\",\"headers\":{\"Foo\":[\"bar\",\"baz\"]},\"receivedTimestamp\":1571234567890}";
+
+        final FileStorage.StorageBlock result = marshalling.unmarshal(json.getBytes(StandardCharsets.UTF_8));
+
+        final Map<String, Collection<String>> expectedHeaders = new HashMap<>();
+        expectedHeaders.put("Foo", Arrays.asList("bar", "baz"));
+        assertEquals(URI.create("http://foo.com/bar"), result.getUri());
+        assertEquals(expectedHeaders, result.getHeaders());
+        assertEquals(1571234567890L, result.getReceivedTimestamp());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownFormat() throws IOException {
+        marshalling.unmarshal(new byte[]{1, 2, 3, 4, 5, 6, 7, 0, 0, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedBinary() throws IOException {
+        final byte[] bytes = marshalling.marshal(new FileStorage.StorageBlock(URI.create("http://foo.com/bar"),
+                TestDataFactory.generateHeaders(), 1571234567890L));
+        marshalling.unmarshal(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownHeaderNameCode() throws IOException {
+        final byte[] bytes = marshalling.marshal(new FileStorage.StorageBlock(URI.create("http://foo.com/bar"),
+                Collections.singletonMap("x-correlation-id", Arrays.asList("a")), 1571234567890L));
+        // header name code, right before value count and value
+        bytes[bytes.length - 4] = 127;
+        marshalling.unmarshal(bytes);
+    }
+}
@@ -0,0 +1,61 @@
+package tv.xrm.qproxy.storage;
+
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecoveryStreamsTest {
+
+    @Test
+    public void readsChunksInOrderAndOnlyAFewAhead() {
+        final AtomicInteger read = new AtomicInteger();
+        final List<Supplier<List<Request>>> chunks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final int chunk = i;
+            chunks.add(() -> {
+                read.incrementAndGet();
+                return new ArrayList<>(Arrays.asList(request("c" + chunk + "b", chunk * 10 + 2),
+                        request("c" + chunk + "a", chunk * 10 + 1)));
+            });
+        }
+
+        try (Stream<Request> stream = RecoveryStreams.prefetched(chunks, 2)) {
+            final List<Request> first = stream.limit(1).collect(Collectors.toList());
+            assertEquals("c0a", first.get(0).getId());
+        }
+        assertTrue(read.get() <= 2);
+
+        try (Stream<Request> stream = RecoveryStreams.prefetched(chunks, 2)) {
+            final List<String> ids = stream.map(Request::getId).collect(Collectors.toList());
+            assertEquals(20, ids.size());
+            assertEquals(Arrays.asList("c0a", "c0b", "c1a", "c1b"), ids.subList(0, 4));
+        }
+    }
+
+    @Test
+    public void mergesOldestFirst() {
+        final Stream<Request> a = Stream.of(request("a1", 1), request("a5", 5));
+        final Stream<Request> b = Stream.of(request("b2", 2), request("b3", 3), request("b9", 9));
+
+        try (Stream<Request> merged = RecoveryStreams.merged(Arrays.asList(a, b, Stream.empty()))) {
+            assertEquals(Arrays.asList("a1", "b2", "b3", "a5", "b9"),
+                    merged.map(Request::getId).collect(Collectors.toList()));
+        }
+    }
+
+    private static Request request(final String id, final long receivedTimestamp) {
+        return new Request(URI.create("http://foo.bar"), Collections.emptyMap(), null, id, 0, receivedTimestamp);
+    }
+}
@@ -0,0 +1,217 @@
+package tv.xrm.qproxy.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SegmentedStorageTest {
+    private static final long SEGMENT_SIZE = 4096;
+
+    private Path tempFolder;
+    private SegmentedStorage storage;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(SegmentedStorageTest.class.getSimpleName());
+        storage = new SegmentedStorage(tempFolder, SEGMENT_SIZE);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc == null) {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    @Test
+    public void canStoreAndRetrieve() throws Exception {
+        final URI uri = new URI("http://foo.com/bar/12354?bla=boo");
+        final Map<String, Collection<String>> headers = TestDataFactory.generateHeaders();
+        final String data = "Съешь ещё этих мягких французских булок, да выпей же чаю";
+
+        final Request r = new Request(uri, headers, TestDataFactory.channelFromString(data), null, 0, System.currentTimeMillis());
+        String id = storage.store(r);
+
+        try (final Request retrievedRequest = storage.retrieve(id)) {
+            assertEquals(id, retrievedRequest.getId());
+            assertEquals(uri, retrievedRequest.getUri());
+            assertEquals(r.getHeaders(), retrievedRequest.getHeaders());
+            assertEquals(data, TestDataFactory.stringFromChannel(retrievedRequest.getBodyStream()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsProperlyOnNonexistentId() throws IOException {
+        storage.retrieve("nonexistent");
+    }
+
+    @Test(expected = IOException.class)
+    public void failsProperlyOnDeletedId() throws IOException {
+        String id = storage.store(TestDataFactory.generateRequest());
+        storage.delete(id);
+        storage.retrieve(id);
+    }
+
+    @Test
+    public void reclaimsSegmentsWhenAllRecordsDeleted() throws IOException {
+        String first = storage.store(requestOfSize(3000));
+        String second = storage.store(requestOfSize(3000));
+        assertEquals(2, countSegments());
+
+        storage.delete(first);
+        assertEquals(1, countSegments());
+
+        storage.delete(second);
+        assertEquals(1, countSegments());
+    }
+
+    @Test
+    public void storesRequestsLargerThanSegmentSize() throws IOException {
+        String id = storage.store(requestOfSize((int) SEGMENT_SIZE * 3));
+
+        try (final Request retrievedRequest = storage.retrieve(id)) {
+            assertEquals(SEGMENT_SIZE * 3, TestDataFactory.stringFromChannel(retrievedRequest.getBodyStream()).length());
+        }
+    }
+
+    @Test
+    public void storesBatchInOneSegment() throws IOException {
+        List<String> ids = storage.storeAll(Arrays.asList(
+                new Request(URI.create("http://foo.bar/a"), TestDataFactory.generateHeaders(),
+                        TestDataFactory.channelFromString("first"), null, 0, 1000),
+                new Request(URI.create("http://foo.bar/b"), TestDataFactory.generateHeaders(),
+                        TestDataFactory.channelFromString("second"), null, 0, 1000)));
+
+        assertEquals(2, ids.size());
+        assertEquals(1, countSegments());
+        try (final Request retrievedRequest = storage.retrieve(ids.get(1))) {
+            assertEquals(URI.create("http://foo.bar/b"), retrievedRequest.getUri());
+            assertEquals("second", TestDataFactory.stringFromChannel(retrievedRequest.getBodyStream()));
+        }
+        assertEquals(2, TestDataFactory.recoverAll(new SegmentedStorage(tempFolder, SEGMENT_SIZE)).size());
+    }
+
+    @Test
+    public void recoversOnlyRecordsLeftOverWhenOpened() throws IOException {
+        String leftover = storage.store(TestDataFactory.generateRequest());
+        SegmentedStorage restarted = new SegmentedStorage(tempFolder, SEGMENT_SIZE);
+        restarted.store(TestDataFactory.generateRequest());
+
+        List<Request> reqs = TestDataFactory.recoverAll(restarted);
+
+        assertEquals(1, reqs.size());
+        assertEquals(leftover, reqs.get(0).getId());
+    }
+
+    @Test
+    public void recoversLiveRecordsOnly() throws IOException {
+        String kept = storage.store(TestDataFactory.generateRequest());
+        String deleted = storage.store(TestDataFactory.generateRequest());
+        storage.delete(deleted);
+
+        List<Request> reqs = TestDataFactory.recoverAll(new SegmentedStorage(tempFolder, SEGMENT_SIZE));
+
+        assertEquals(1, reqs.size());
+        assertEquals(kept, reqs.get(0).getId());
+    }
+
+    @Test
+    public void recoversMetadataOldestFirst() throws IOException {
+        String newer = storage.store(new Request(URI.create("http://foo.bar/new"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString("new"), null, 0, 2000));
+        String older = storage.store(new Request(URI.create("http://foo.bar/old"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString("old"), null, 0, 1000));
+        storage.delete(storage.store(TestDataFactory.generateRequest()));
+
+        List<Request> reqs = TestDataFactory.recoverAll(new SegmentedStorage(tempFolder, SEGMENT_SIZE));
+
+        assertEquals(2, reqs.size());
+        assertEquals(older, reqs.get(0).getId());
+        assertNull(reqs.get(0).getBodyStream());
+        assertEquals(newer, reqs.get(1).getId());
+    }
+
+    @Test
+    public void recoversRecordsAfterUnwrittenReservation() throws IOException {
+        String unwritten = storage.store(requestOfSize(100));
+        String written = storage.store(requestOfSize(100));
+
+        // what a crash leaves when a record's space was reserved but its contents never written
+        final long[] location = SegmentedStorage.parseId(unwritten);
+        final Path segment = tempFolder.resolve(String.format("%020d%s", location[0], SegmentedStorage.SUFFIX));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{SegmentedStorage.STATUS_FREE}), location[1]);
+            final long contentOffset = location[1] + SegmentedStorage.RECORD_HEADER_SIZE;
+            channel.write(ByteBuffer.allocate((int) (SegmentedStorage.parseId(written)[1] - contentOffset)),
+                    contentOffset);
+        }
+
+        List<Request> reqs = TestDataFactory.recoverAll(new SegmentedStorage(tempFolder, SEGMENT_SIZE));
+
+        assertEquals(1, reqs.size());
+        assertEquals(written, reqs.get(0).getId());
+    }
+
+    @Test
+    public void skipsCorruptedSegmentFiles() throws IOException {
+        Path corrupted = Files.createFile(tempFolder.resolve("00000000000000000042" + SegmentedStorage.SUFFIX));
+        Files.write(corrupted, new byte[]{1, 0, 0, 127, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+
+        List<Request> reqs = TestDataFactory.recoverAll(new SegmentedStorage(tempFolder, SEGMENT_SIZE));
+
+        assertNotNull(reqs);
+        assertTrue(reqs.isEmpty());
+    }
+
+    private static Request requestOfSize(final int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append('x');
+        }
+        return new Request(URI.create("http://foo.bar"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString(sb.toString()), null, 0, System.currentTimeMillis());
+    }
+
+    private int countSegments() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempFolder, "*" + SegmentedStorage.SUFFIX)) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
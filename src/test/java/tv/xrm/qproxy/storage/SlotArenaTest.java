@@ -0,0 +1,82 @@
+package tv.xrm.qproxy.storage;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SlotArenaTest {
+
+    @Test
+    public void reusesMemoryWhenTheSizeMixChanges() {
+        final SlotArena arena = new SlotArena(4096, 1024);
+
+        final List<ByteBuffer> small = new ArrayList<>();
+        ByteBuffer slot;
+        while ((slot = arena.allocate(50)) != null) {
+            small.add(slot);
+        }
+        assertEquals(4096 / 64, small.size());
+        assertNull(arena.allocate(1000));
+
+        small.forEach(arena::free);
+        assertEquals(0, arena.getUsedBytes());
+
+        final List<ByteBuffer> large = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            large.add(assertSlot(arena.allocate(1000), 1024));
+        }
+        assertNull(arena.allocate(64));
+        assertEquals(4096, arena.getUsedBytes());
+
+        large.forEach(arena::free);
+        assertNotNull(arena.allocate(64));
+    }
+
+    @Test
+    public void mergesFreedSlotsWithTheirBuddiesOnly() {
+        final SlotArena arena = new SlotArena(1024, 1024);
+        final ByteBuffer a = assertSlot(arena.allocate(256), 256);
+        final ByteBuffer b = assertSlot(arena.allocate(256), 256);
+        final ByteBuffer c = assertSlot(arena.allocate(512), 512);
+        assertNull(arena.allocate(64));
+
+        arena.free(a);
+        arena.free(c);
+        // a's buddy b is still in use, so there is no room for 512 bytes in one piece
+        assertNull(arena.allocate(512 + 1));
+        assertSlot(arena.allocate(512), 512);
+
+        arena.free(b);
+        assertSlot(arena.allocate(512), 512);
+        assertNull(arena.allocate(64));
+    }
+
+    @Test
+    public void splitsBlocksOfUnevenCapacity() {
+        final SlotArena arena = new SlotArena(1000, 512);
+        int total = 0;
+        ByteBuffer slot;
+        while ((slot = arena.allocate(64)) != null) {
+            total += slot.capacity();
+        }
+        assertEquals(960, total);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesForeignSlots() {
+        new SlotArena(1024, 1024).free(ByteBuffer.allocateDirect(64));
+    }
+
+    private static ByteBuffer assertSlot(final ByteBuffer slot, final int capacity) {
+        assertNotNull(slot);
+        assertEquals(capacity, slot.capacity());
+        assertEquals(0, slot.position());
+        return slot;
+    }
+}
@@ -0,0 +1,104 @@
+package tv.xrm.qproxy.storage;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.RequestStorage;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares store/delete throughput (messages per second) of the storage implementations. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=tv.xrm.qproxy.storage.StorageBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+public class StorageBenchmark {
+
+    @Param({"file", "segmented"})
+    public String storageType;
+
+    @Param({"256", "16384"})
+    public int bodySize;
+
+    private static final URI TARGET = URI.create("http://foo.bar/baz");
+    private static final Map<String, Collection<String>> HEADERS = TestDataFactory.generateHeaders();
+
+    private Path tempFolder;
+    private RequestStorage storage;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(StorageBenchmark.class.getSimpleName());
+        switch (storageType) {
+            case "file":
+                storage = new FileStorage(tempFolder);
+                break;
+            case "segmented":
+                storage = new SegmentedStorage(tempFolder, 64 * 1024 * 1024);
+                break;
+            default:
+                throw new IllegalArgumentException(storageType);
+        }
+        body = new byte[bodySize];
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public void storeAndDelete() throws IOException {
+        final Request request = new Request(TARGET, HEADERS, Channels.newChannel(new ByteArrayInputStream(body)), null, 0,
+                System.currentTimeMillis());
+        storage.delete(storage.store(request));
+    }
+
+    @Benchmark
+    public void storeRetrieveAndDelete() throws IOException {
+        final Request request = new Request(TARGET, HEADERS, Channels.newChannel(new ByteArrayInputStream(body)), null, 0,
+                System.currentTimeMillis());
+        final String id = storage.store(request);
+        try (Request retrieved = storage.retrieve(id)) {
+            TestDataFactory.stringFromChannel(retrieved.getBodyStream());
+        }
+        storage.delete(id);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StorageBenchmark.class.getSimpleName()).build()).run();
+    }
+}
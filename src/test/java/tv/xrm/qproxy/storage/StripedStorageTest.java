@@ -0,0 +1,126 @@
+package tv.xrm.qproxy.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StripedStorageTest {
+    private Path tempFolder;
+    private Path first;
+    private Path second;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(StripedStorageTest.class.getSimpleName());
+        first = Files.createDirectory(tempFolder.resolve("first"));
+        second = Files.createDirectory(tempFolder.resolve("second"));
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc == null) {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    @Test
+    public void roundRobinSpreadsOverAllDirectories() throws IOException {
+        final StripedStorage storage = create(StripedStorage.Mode.ROUND_ROBIN);
+
+        final String a = storage.store(requestTo("http://foo.bar/a", "first"));
+        final String b = storage.store(requestTo("http://foo.bar/b", "second"));
+
+        assertEquals(1, countFiles(first));
+        assertEquals(1, countFiles(second));
+        try (Request retrieved = storage.retrieve(a)) {
+            assertEquals(a, retrieved.getId());
+            assertEquals("first", TestDataFactory.stringFromChannel(retrieved.getBodyStream()));
+        }
+        try (Request retrieved = storage.retrieve(b)) {
+            assertEquals(URI.create("http://foo.bar/b"), retrieved.getUri());
+        }
+
+        storage.delete(a);
+        storage.delete(b);
+        assertEquals(0, countFiles(first));
+        assertEquals(0, countFiles(second));
+    }
+
+    @Test
+    public void hostModeKeepsATargetOnOneDirectory() throws IOException {
+        final StripedStorage storage = create(StripedStorage.Mode.HOST);
+
+        final int stripe = storage.stripeFor(URI.create("http://foo.bar/a"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(stripe, storage.stripeFor(URI.create("http://foo.bar/" + i)));
+        }
+    }
+
+    @Test
+    public void recoversFromAllDirectoriesInOrder() throws IOException {
+        final StripedStorage storage = create(StripedStorage.Mode.ROUND_ROBIN);
+        final String a = storage.store(requestTo("http://foo.bar/a", "first", 1000));
+        final String b = storage.store(requestTo("http://foo.bar/b", "second", 3000));
+        final String c = storage.store(requestTo("http://foo.bar/c", "third", 2000));
+
+        final List<Request> recovered = TestDataFactory.recoverAll(create(StripedStorage.Mode.ROUND_ROBIN));
+
+        assertEquals(3, recovered.size());
+        assertEquals(a, recovered.get(0).getId());
+        assertEquals(c, recovered.get(1).getId());
+        assertEquals(b, recovered.get(2).getId());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownStripe() throws IOException {
+        create(StripedStorage.Mode.ROUND_ROBIN).retrieve("7:whatever");
+    }
+
+    private StripedStorage create(final StripedStorage.Mode mode) {
+        return new StripedStorage(Arrays.asList(new FileStorage(first), new FileStorage(second)),
+                Arrays.asList(first, second), mode, new MetricRegistry());
+    }
+
+    private static long countFiles(final Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static Request requestTo(final String uri, final String body) {
+        return requestTo(uri, body, System.currentTimeMillis());
+    }
+
+    private static Request requestTo(final String uri, final String body, final long timestamp) {
+        return new Request(URI.create(uri), TestDataFactory.generateHeaders(), TestDataFactory.channelFromString(body),
+                null, 0, timestamp);
+    }
+}
@@ -0,0 +1,125 @@
+package tv.xrm.qproxy.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tv.xrm.qproxy.Request;
+import tv.xrm.qproxy.TestDataFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.Assert.*;
+
+public class TieredStorageTest {
+    private static final int MAX_BODY = 100;
+
+    private Path tempFolder;
+    private TieredStorage storage;
+
+    @Before
+    public void setup() throws IOException {
+        tempFolder = Files.createTempDirectory(TieredStorageTest.class.getSimpleName());
+        storage = new TieredStorage(new FileStorage(tempFolder), new MetricRegistry(), 256, MAX_BODY);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.walkFileTree(tempFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc == null) {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    @Test
+    public void keepsSmallBodiesInMemory() throws IOException {
+        final String data = "Съешь ещё этих мягких французских булок";
+
+        final String id = storage.store(requestWithBody(data));
+
+        assertTrue(id.startsWith(TieredStorage.MEMORY_ID_PREFIX));
+        assertEquals(0, countFiles());
+        try (Request retrieved = storage.retrieve(id)) {
+            assertEquals(URI.create("http://foo.bar/baz"), retrieved.getUri());
+            assertEquals(data.getBytes("UTF-8").length, ((SeekableByteChannel) retrieved.getBodyStream()).size());
+            assertEquals(data, TestDataFactory.stringFromChannel(retrieved.getBodyStream()));
+        }
+    }
+
+    @Test
+    public void spillsLargeBodiesToDisk() throws IOException {
+        final String data = repeat('x', MAX_BODY + 1);
+
+        final String id = storage.store(requestWithBody(data));
+
+        assertFalse(id.startsWith(TieredStorage.MEMORY_ID_PREFIX));
+        assertEquals(1, countFiles());
+        try (Request retrieved = storage.retrieve(id)) {
+            assertEquals(data, TestDataFactory.stringFromChannel(retrieved.getBodyStream()));
+        }
+
+        storage.delete(id);
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void spillsWhenMemoryIsFullAndReusesFreedSlots() throws IOException {
+        final String data = repeat('y', MAX_BODY);
+
+        final String first = storage.store(requestWithBody(data));
+        final String second = storage.store(requestWithBody(data));
+        final String third = storage.store(requestWithBody(data));
+
+        assertTrue(first.startsWith(TieredStorage.MEMORY_ID_PREFIX));
+        assertTrue(second.startsWith(TieredStorage.MEMORY_ID_PREFIX));
+        assertFalse(third.startsWith(TieredStorage.MEMORY_ID_PREFIX));
+
+        storage.delete(first);
+        assertTrue(storage.store(requestWithBody(data)).startsWith(TieredStorage.MEMORY_ID_PREFIX));
+    }
+
+    @Test(expected = IOException.class)
+    public void forgetsDeletedRequests() throws IOException {
+        final String id = storage.store(requestWithBody("short"));
+        storage.delete(id);
+        storage.retrieve(id);
+    }
+
+    private long countFiles() throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(tempFolder)) {
+            return files.count();
+        }
+    }
+
+    private static Request requestWithBody(final String body) {
+        return new Request(URI.create("http://foo.bar/baz"), TestDataFactory.generateHeaders(),
+                TestDataFactory.channelFromString(body), null, 0, System.currentTimeMillis());
+    }
+
+    private static String repeat(final char c, final int n) {
+        final StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}